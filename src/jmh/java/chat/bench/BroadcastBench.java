@@ -0,0 +1,135 @@
+package chat.bench;
+
+import chat.additional.Frame;
+import chat.additional.ServerMode;
+import chat.additional.Settings;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static chat.additional.ServerMessage.LOGIN_ALREADY_TAKEN;
+
+/**
+ * Logs in the target number of users, then has the admin /broadcast and measures how long it takes
+ * until every user has received every broadcast: {@code gradle broadcastBench -PbenchArgs="nio 10000 100"}.
+ * The server runs in a child JVM, see {@link ServerProcess}.
+ */
+public class BroadcastBench {
+    private static final String PASSWORD = "12345678";
+    private static final String BROADCAST_PREFIX = "Server: broadcast from ";
+
+    public static void main(String[] args) throws Exception {
+        ServerMode mode = args.length > 0 ? ServerMode.valueOf(args[0].toUpperCase()) : ServerMode.NIO;
+        int target = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        // at most the outbound queue capacity, so that no broadcast is dropped or coalesced
+        int broadcasts = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        ServerProcess.start(mode, List.of());
+        Thread.sleep(1500);
+
+        var address = new InetSocketAddress(Settings.DEFAULT_HOST, Settings.DEFAULT_PORT);
+        var selector = Selector.open();
+        List<SocketChannel> clients = new ArrayList<>(target);
+        try {
+            for (int i = 0; i < target; i++) {
+                SocketChannel client = SocketChannel.open(address);
+                login(client, "bench" + i);
+                client.configureBlocking(false);
+                client.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(64 * 1024));
+                clients.add(client);
+            }
+        } catch (IOException e) {
+            System.out.println("stopped at " + clients.size() + " sessions: " + e);
+        }
+
+        SocketChannel admin = SocketChannel.open(address);
+        login(admin, "admin");
+        var adminIn = new DataInputStream(Channels.newInputStream(admin));
+        var adminReader = new Thread(() -> {
+            try {
+                while (true) {
+                    adminIn.readUTF();
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        adminReader.setDaemon(true);
+        adminReader.start();
+
+        long expected = (long) clients.size() * broadcasts;
+        long start = System.nanoTime();
+        for (int i = 0; i < broadcasts; i++) {
+            write(admin, "/broadcast " + i);
+        }
+        long received = receive(selector, expected, 120_000);
+        long elapsed = System.nanoTime() - start;
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("mode=%s sessions=%d broadcasts=%d received=%d/%d time=%dms broadcasts/s=%.0f deliveries/s=%.0f%n",
+                mode, clients.size(), broadcasts, received, expected, elapsed / 1_000_000,
+                broadcasts / seconds, received / seconds);
+
+        // skip the orderly disconnect of every session, the numbers are already taken
+        System.exit(0);
+    }
+
+    private static void login(SocketChannel channel, String login) throws IOException {
+        // unbuffered, so nothing past the replies is consumed before the channel turns non-blocking
+        var in = new DataInputStream(Channels.newInputStream(channel));
+        in.readUTF(); // authorize or register
+        write(channel, "/registration " + login + " " + PASSWORD);
+        if (LOGIN_ALREADY_TAKEN.msg.equals(in.readUTF())) {
+            write(channel, "/auth " + login + " " + PASSWORD);
+            in.readUTF();
+        }
+    }
+
+    private static void write(SocketChannel channel, String msg) throws IOException {
+        ByteBuffer frame = Frame.text(msg).encodeUtf();
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    /**
+     * Counts broadcasts until the expected number or the timeout. Frames are parsed in place in the buffer of each channel.
+     */
+    private static long receive(Selector selector, long expected, long timeoutMillis) throws IOException {
+        long received = 0;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (received < expected && System.currentTimeMillis() < deadline) {
+            selector.select(100);
+            for (SelectionKey key : selector.selectedKeys()) {
+                var buffer = (ByteBuffer) key.attachment();
+                if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                    key.cancel();
+                    continue;
+                }
+                buffer.flip();
+                while (buffer.remaining() >= 2) {
+                    int len = buffer.getShort(buffer.position()) & 0xFFFF;
+                    if (buffer.remaining() < 2 + len) {
+                        break;
+                    }
+                    String msg = new String(buffer.array(), buffer.position() + 2, len, StandardCharsets.UTF_8);
+                    if (msg.startsWith(BROADCAST_PREFIX)) {
+                        received++;
+                    }
+                    buffer.position(buffer.position() + 2 + len);
+                }
+                buffer.compact();
+            }
+            selector.selectedKeys().clear();
+        }
+        return received;
+    }
+}
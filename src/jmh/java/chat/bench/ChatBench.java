@@ -0,0 +1,80 @@
+package chat.bench;
+
+import chat.user.Chat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A message to a chat, its last page, and the /unread of a user with unread messages in 50 chats.
+ * The log is written in the async mode: the numbers are of the chat, not of the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.durability=async"})
+public class ChatBench {
+    private static final int UNREAD_CHATS = 50;
+
+    private Chat chat;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Db.recoverEmpty();
+        chat = Chat.getChat(Set.of("alice", "bob"));
+        for (int i = 0; i < 100; i++) {
+            send(chat, i % 2 == 0 ? "alice" : "bob", "message " + i);
+        }
+        chat.getLast25Msgs("alice");
+        for (int i = 0; i < UNREAD_CHATS; i++) {
+            send(Chat.getChat(Set.of("reader", "friend" + i)), "friend" + i, "hello");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Db.close();
+    }
+
+    /**
+     * A message as a session sends it: added, acknowledged, then delivered.
+     */
+    static void send(Chat chat, String sender, String msg) {
+        chat.sendMessage(sender, msg).join();
+        chat.deliver();
+    }
+
+    @Benchmark
+    public void sendMessage() {
+        send(chat, "alice", "a message of an ordinary length");
+    }
+
+    /**
+     * Alice has read everything, the page comes from the hot tail and writes no read record.
+     */
+    @Benchmark
+    public List<String> getLast25Msgs() {
+        return chat.getLast25Msgs("alice");
+    }
+
+    @Benchmark
+    public List<String> getUsersThatSentUnreadMsgs() {
+        return Chat.getUsersThatSentUnreadMsgs("reader");
+    }
+}
@@ -0,0 +1,65 @@
+package chat.bench;
+
+import chat.user.Chat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Chat#getChat} of an existing chat, picked at random out of all of them so that the lookups miss the caches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Dchat.durability=async"})
+public class ChatLookupBench {
+    @Param({"1000", "100000", "1000000"})
+    public int chats;
+
+    private List<Set<String>> pairs;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Db.recoverEmpty();
+        pairs = new ArrayList<>(chats);
+        for (int i = 0; i < chats; i++) {
+            var pair = Set.of("user" + i, "friend" + i);
+            Chat.getChat(pair);
+            pairs.add(pair);
+        }
+        Collections.shuffle(pairs, new Random(42));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Db.close();
+    }
+
+    @Benchmark
+    public Chat getChat() {
+        Set<String> pair = pairs.get(next);
+        next = next + 1 == chats ? 0 : next + 1;
+        return Chat.getChat(pair);
+    }
+}
@@ -0,0 +1,41 @@
+package chat.bench;
+
+import chat.additional.Command;
+import chat.additional.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the command of a line, done for every line a user sends: a plain message, a command alone
+ * and a command with arguments, the last command looked up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBench {
+    @Param({"hello, how are you?", "/unread", "/broadcast server restarts in 5 minutes"})
+    public String line;
+
+    @Benchmark
+    public Command commandOf() {
+        return Command.of(line);
+    }
+
+    @Benchmark
+    public Frame fromLine() {
+        return Frame.fromLine(line, 1);
+    }
+}
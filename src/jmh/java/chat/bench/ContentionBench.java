@@ -0,0 +1,104 @@
+package chat.bench;
+
+import chat.user.Chat;
+import chat.user.UserRepo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static chat.additional.Role.MODERATOR;
+import static chat.additional.Role.USER;
+
+/**
+ * Messages and role changes of many threads at once, spread over a number of chats and users.
+ * With one partition every thread contends for the same chat and user; with as many as threads each one has its own,
+ * and the throughput should grow with the threads up to the cores. Vary the threads with -t, e.g.
+ * -PbenchArgs="ContentionBench -t 8 -p partitions=1,8".
+ * <p>
+ * The group mode adds the ack of the journal, which all the chats share, to every message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ContentionBench {
+    @Param({"1", "4", "64"})
+    public int partitions;
+
+    @Param({"async", "group"})
+    public String durability;
+
+    private Chat[] chats;
+    private final AtomicInteger nextThread = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // read when the journals are opened, every trial runs in a fork of its own
+        System.setProperty("chat.durability", durability);
+        Db.recoverEmpty();
+        chats = new Chat[partitions];
+        for (int i = 0; i < partitions; i++) {
+            chats[i] = Chat.getChat(Set.of(senderOf(i), "friend" + i));
+            UserRepo.saveIfAbsent(senderOf(i), "-1861353340", List.of(USER.name()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Db.close();
+    }
+
+    private static String senderOf(int partition) {
+        return "user" + partition;
+    }
+
+    /**
+     * Chat and user of a thread, threads take the partitions in turn.
+     */
+    @State(Scope.Thread)
+    public static class Partition {
+        private Chat chat;
+        private String login;
+
+        @Setup(Level.Trial)
+        public void setUp(ContentionBench bench) {
+            int partition = bench.nextThread.getAndIncrement() % bench.partitions;
+            chat = bench.chats[partition];
+            login = senderOf(partition);
+        }
+    }
+
+    @Benchmark
+    public void sendMessage(Partition partition) {
+        ChatBench.send(partition.chat, partition.login, "a message of an ordinary length");
+    }
+
+    /**
+     * A grant and a revoke, each written and acknowledged under the lock of the user.
+     */
+    @Benchmark
+    public void changeRole(Partition partition) {
+        UserRepo.grantRole(partition.login, MODERATOR.name()).join();
+        UserRepo.removeRole(partition.login, MODERATOR.name()).join();
+    }
+}
@@ -0,0 +1,47 @@
+package chat.bench;
+
+import chat.user.Chat;
+import chat.user.UserRepo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Db files of a benchmark in its working directory, loaded the way the server loads them on start.
+ */
+public class Db {
+    private static final List<String> FILES = List.of(
+            "chatsDb.txt", "chatsDb.idx", "chatsDb.snapshot", "usersDb.txt", "usersDb.snapshot");
+
+    private Db() {
+    }
+
+    /**
+     * Deletes the files left by an earlier run and recovers the empty repositories.
+     */
+    public static void recoverEmpty() throws IOException {
+        for (String file : FILES) {
+            Path path = Path.of(file);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.walk(path)) {
+                    for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                        Files.delete(p);
+                    }
+                }
+            } else {
+                Files.deleteIfExists(path);
+            }
+        }
+        UserRepo.recover();
+        Chat.recover();
+    }
+
+    public static void close() {
+        UserRepo.close();
+        Chat.close();
+    }
+}
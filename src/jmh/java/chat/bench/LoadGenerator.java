@@ -0,0 +1,449 @@
+package chat.bench;
+
+import chat.additional.Command;
+import chat.additional.Frame;
+import chat.additional.LatencyHistogram;
+import chat.additional.ServerMode;
+import chat.additional.Settings;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static chat.additional.ServerMessage.LOGIN_ALREADY_TAKEN;
+import static chat.additional.ServerMessage.SERVER_BUSY;
+
+/**
+ * Headless load on a chat server. Clients log in, each opens the chat with the other client of its pair,
+ * then they send commands picked by the mix at a fixed rate of all clients, for each of the rates in turn.
+ * Throughput and latency percentiles are reported per command and rate:
+ * {@code gradle loadGenerator -PbenchArgs="clients=1000 rate=1000,2000,4000 duration=20"}.
+ * <p>
+ * Options, as key=value:
+ * <ul>
+ *     <li>clients: simulated clients, an even number (default 1000)</li>
+ *     <li>rate: commands per second of all clients, comma separated to step through (default 1000)</li>
+ *     <li>duration: seconds per rate (default 20)</li>
+ *     <li>mix: weights of send, history, unread, chat and list (default send:70,history:10,unread:10,chat:10)</li>
+ *     <li>spawn: mode of the server started in a child JVM, none to load a running one (default nio),
+ *     other arguments starting with -D go to that JVM, e.g. -Dchat.durability=sync</li>
+ *     <li>threads: client event loops (default half of the cores)</li>
+ * </ul>
+ * The clients switch to the binary protocol, a reply is matched to its request by the correlation id.
+ * Latency is taken from the time a command was due, not from when it was written, so a client held back
+ * by a saturated server still counts the wait. The latency of send is until the sender gets its message back,
+ * delivery is until the peer gets it. Logins are load0, load1...: against the db of an earlier run they log in with /auth.
+ */
+public class LoadGenerator {
+    private static final String PASSWORD = "12345678";
+    private static final String LOGIN_PREFIX = "load";
+    private static final String MESSAGE_MARK = ": m ";
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final AtomicLong outstanding = new AtomicLong(); // requests without a reply
+    private final AtomicLong busy = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final String[] mix;
+
+    private LoadGenerator(String[] mix) {
+        this.mix = mix;
+        for (String command : List.of("registration", "auth", "chat", "send", "delivery", "history", "unread", "list")) {
+            latencies.put(command, new LatencyHistogram());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        List<String> serverOptions = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("-D")) {
+                serverOptions.add(arg);
+            } else {
+                String[] keyValue = arg.split("=", 2);
+                if (keyValue.length != 2) {
+                    throw new IllegalArgumentException("Expected key=value: " + arg);
+                }
+                options.put(keyValue[0], keyValue[1]);
+            }
+        }
+        int clients = Integer.parseInt(options.getOrDefault("clients", "1000")) & ~1;
+        String[] rates = options.getOrDefault("rate", "1000").split(",");
+        int duration = Integer.parseInt(options.getOrDefault("duration", "20"));
+        String spawn = options.getOrDefault("spawn", "nio");
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+        var generator = new LoadGenerator(parseMix(options.getOrDefault("mix", "send:70,history:10,unread:10,chat:10")));
+
+        if (!"none".equals(spawn)) {
+            ServerProcess.start(ServerMode.valueOf(spawn.toUpperCase()), serverOptions);
+            Thread.sleep(1500);
+        }
+
+        var address = new InetSocketAddress(Settings.DEFAULT_HOST, Settings.DEFAULT_PORT);
+        List<ClientLoop> loops = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            loops.add(generator.new ClientLoop(i));
+        }
+        for (int i = 0; i < clients; i++) {
+            var client = generator.new Client(LOGIN_PREFIX + i, LOGIN_PREFIX + (i ^ 1), connect(address));
+            loops.get(i % threads).add(client);
+        }
+        loops.forEach(loop -> new Thread(loop, "load-" + loop.id).start());
+
+        // a storm of logins, then every client opens its chat once the peer is online
+        long start = System.nanoTime();
+        runOnEach(loops, loop -> loop.clients.forEach(c -> c.request("registration",
+                Command.REGISTRATION.msg + " " + c.login + " " + PASSWORD, System.nanoTime())));
+        generator.drain();
+        generator.report("logins", clients, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        runOnEach(loops, loop -> loop.clients.forEach(c -> c.openChat(System.nanoTime())));
+        generator.drain();
+        generator.report("chats", clients, System.nanoTime() - start);
+
+        for (String rate : rates) {
+            generator.reset();
+            double loopRate = Double.parseDouble(rate) / threads;
+            runOnEach(loops, loop -> loop.startIssuing(loopRate));
+            start = System.nanoTime();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+            runOnEach(loops, ClientLoop::stopIssuing);
+            long elapsed = System.nanoTime() - start;
+            generator.drain();
+            generator.report("rate " + rate + "/s", clients, elapsed);
+        }
+
+        // skip the orderly disconnect of every client, the numbers are already taken
+        System.exit(0);
+    }
+
+    private static void runOnEach(List<ClientLoop> loops, Consumer<ClientLoop> task) {
+        CompletableFuture.allOf(loops.stream()
+                .map(loop -> loop.execute(() -> task.accept(loop)))
+                .toArray(CompletableFuture[]::new)).join();
+    }
+
+    private static String[] parseMix(String mix) {
+        // one entry per unit of weight, a command is picked by a uniform index
+        List<String> commands = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] commandWeight = entry.split(":");
+            if (!List.of("send", "history", "unread", "chat", "list").contains(commandWeight[0])) {
+                throw new IllegalArgumentException("Unknown command in the mix: " + commandWeight[0]);
+            }
+            int weight = commandWeight.length > 1 ? Integer.parseInt(commandWeight[1]) : 1;
+            for (int i = 0; i < weight; i++) {
+                commands.add(commandWeight[0]);
+            }
+        }
+        if (commands.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix");
+        }
+        return commands.toArray(String[]::new);
+    }
+
+    /**
+     * Connects and switches to the binary protocol, blocking. Logins are requests of the load.
+     */
+    private static SocketChannel connect(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        // unbuffered, so nothing past the replies is consumed before the channel turns non-blocking
+        var in = new DataInputStream(Channels.newInputStream(channel));
+        in.readUTF(); // authorize or register
+        ByteBuffer frame = Frame.text(Command.PROTOCOL.msg + " binary").encodeUtf();
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+        in.readUTF(); // binary protocol enabled
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    private void drain() throws InterruptedException {
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void reset() {
+        latencies.values().forEach(LatencyHistogram::reset);
+        busy.set(0);
+        errors.set(0);
+    }
+
+    private void report(String phase, int clients, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%s: %d clients, %.1fs, busy=%d errors=%d unanswered=%d%n",
+                phase, clients, seconds, busy.get(), errors.get(), outstanding.get());
+        latencies.forEach((command, histogram) -> {
+            if (histogram.getCount() > 0) {
+                System.out.printf("  %-12s %8d %10.0f/s  %s%n", command, histogram.getCount(),
+                        histogram.getCount() / seconds, histogram);
+            }
+        });
+        latencies.values().forEach(LatencyHistogram::reset);
+    }
+
+    /**
+     * Event loop of a share of the clients, it issues their commands at its share of the rate.
+     */
+    private class ClientLoop implements Runnable {
+        private final int id;
+        private final Selector selector;
+        private final List<Client> clients = new ArrayList<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private long intervalNanos; // between two commands, 0 when not issuing
+        private long nextDue;
+
+        ClientLoop(int id) throws IOException {
+            this.id = id;
+            this.selector = Selector.open();
+        }
+
+        void add(Client client) throws IOException {
+            client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+        }
+
+        /**
+         * Runs the task on the thread of the loop.
+         */
+        CompletableFuture<Void> execute(Runnable task) {
+            var done = new CompletableFuture<Void>();
+            tasks.add(() -> {
+                task.run();
+                done.complete(null);
+            });
+            selector.wakeup();
+            return done;
+        }
+
+        void startIssuing(double rate) {
+            intervalNanos = Math.max(1, (long) (1e9 / rate));
+            nextDue = System.nanoTime();
+        }
+
+        void stopIssuing() {
+            intervalNanos = 0;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    long now = System.nanoTime();
+                    if (intervalNanos > 0) {
+                        // commands that are late are issued at once with the time they were due
+                        while (nextDue <= now) {
+                            var random = ThreadLocalRandom.current();
+                            clients.get(random.nextInt(clients.size())).issue(mix[random.nextInt(mix.length)], nextDue);
+                            nextDue += intervalNanos;
+                        }
+                        long waitMillis = TimeUnit.NANOSECONDS.toMillis(nextDue - now);
+                        if (waitMillis > 0) {
+                            selector.select(waitMillis);
+                        } else {
+                            selector.selectNow();
+                        }
+                    } else {
+                        selector.select();
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        ((Client) key.attachment()).handle(key);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Simulated client, used only by the thread of its loop.
+     */
+    private class Client {
+        private final String login;
+        private final String peer;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        private final Queue<ByteBuffer> out = new ArrayDeque<>();
+        // request by correlation id: name of the command and the time it was due
+        private final Map<Integer, String> commands = new HashMap<>();
+        private final Map<Integer, Long> dueTimes = new HashMap<>();
+        private int nextCorrelationId = 1;
+        private boolean isClosed;
+
+        Client(String login, String peer, SocketChannel channel) {
+            this.login = login;
+            this.peer = peer;
+            this.channel = channel;
+        }
+
+        void issue(String command, long due) {
+            switch (command) {
+                case "send" -> write(Frame.text("m " + due));
+                case "history" -> request(command, Command.HISTORY.msg + " " + ThreadLocalRandom.current().nextInt(100), due);
+                case "unread" -> request(command, Command.UNREAD.msg, due);
+                case "chat" -> openChat(due);
+                case "list" -> request(command, Command.LIST.msg, due);
+                default -> throw new IllegalArgumentException(command);
+            }
+        }
+
+        void openChat(long due) {
+            request("chat", Command.CHAT.msg + " " + peer, due);
+        }
+
+        void request(String command, String line, long due) {
+            int correlationId = nextCorrelationId++;
+            commands.put(correlationId, command);
+            dueTimes.put(correlationId, due);
+            outstanding.incrementAndGet();
+            write(Frame.fromLine(line, correlationId));
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (key.isWritable()) {
+                    flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void write(Frame frame) {
+            if (isClosed) {
+                return;
+            }
+            out.add(frame.encodeBinary());
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void flush() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = out.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                out.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= Integer.BYTES) {
+                int len = in.getInt(in.position());
+                if (len < Frame.HEADER_LEN || len > Frame.MAX_BINARY_LEN) {
+                    throw new IOException("Incorrect frame length: " + len);
+                }
+                if (in.remaining() < Integer.BYTES + len) {
+                    if (Integer.BYTES + len > in.capacity()) {
+                        in = ByteBuffer.allocate(Integer.BYTES + len).put(in);
+                        return;
+                    }
+                    break;
+                }
+                receive(Frame.decodeBinary(in.array(), in.position() + Integer.BYTES, len));
+                in.position(in.position() + Integer.BYTES + len);
+            }
+            in.compact();
+        }
+
+        private void receive(Frame frame) {
+            long now = System.nanoTime();
+            if (!frame.isPush()) {
+                String command = commands.remove(frame.correlationId);
+                if (command == null) {
+                    return;
+                }
+                long due = dueTimes.remove(frame.correlationId);
+                outstanding.decrementAndGet();
+                if (SERVER_BUSY.msg.equals(frame.payload)) {
+                    busy.incrementAndGet();
+                } else if ("registration".equals(command) && LOGIN_ALREADY_TAKEN.msg.equals(frame.payload)) {
+                    // the user is from an earlier run
+                    request("auth", Command.AUTH.msg + " " + login + " " + PASSWORD, now);
+                } else {
+                    latencies.get(command).record(now - due);
+                }
+                return;
+            }
+
+            int mark = frame.payload.indexOf(MESSAGE_MARK);
+            if (mark < 0) {
+                return;
+            }
+            String sender = frame.payload.substring(0, mark);
+            long due;
+            try {
+                due = Long.parseLong(frame.payload.substring(mark + MESSAGE_MARK.length()));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (sender.equals(login)) {
+                latencies.get("send").record(now - due);
+            } else if (sender.equals(peer)) {
+                latencies.get("delivery").record(now - due);
+            }
+        }
+
+        private void close() {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            errors.incrementAndGet();
+            outstanding.addAndGet(-commands.size());
+            commands.clear();
+            dueTimes.clear();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package chat.bench;
+
+import chat.additional.ServerMode;
+import chat.server.Server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Server started in a child JVM on the classpath of the benchmark, in its working directory.
+ * Both ends of thousands of connections in one process would need twice the file descriptors,
+ * and the load of the clients stays out of the server's process.
+ */
+class ServerProcess {
+    private ServerProcess() {
+    }
+
+    /**
+     * @param jvmOptions e.g. -D settings of the server
+     */
+    static Process start(ServerMode mode, List<String> jvmOptions) throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.addAll(jvmOptions);
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"),
+                Server.class.getName(), mode.name().toLowerCase()));
+        Process server = new ProcessBuilder(command).inheritIO().start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::destroy));
+        return server;
+    }
+}
@@ -0,0 +1,86 @@
+package chat.bench;
+
+import chat.additional.ServerMode;
+import chat.additional.Settings;
+import chat.server.Server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Opens idle connections against an in-process server until the target count or the first failure,
+ * then reports how many sessions were held and what each one cost.
+ * Run one mode per JVM so the numbers don't mix: {@code gradle sessionCapacityBench -PbenchArgs="virtual 20000"}.
+ */
+public class SessionCapacityBench {
+
+    public static void main(String[] args) throws Exception {
+        ServerMode mode = args.length > 0 ? ServerMode.valueOf(args[0].toUpperCase()) : ServerMode.BLOCKING;
+        int target = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+
+        Server server = Server.getServer();
+        var serverThread = new Thread(() -> server.run(mode));
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(1000);
+
+        long heapBefore = usedHeap();
+        long rssBefore = rss();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        List<SocketChannel> clients = new ArrayList<>(target);
+        var address = new InetSocketAddress(Settings.DEFAULT_HOST, Settings.DEFAULT_PORT);
+        try {
+            while (clients.size() < target) {
+                clients.add(SocketChannel.open(address));
+            }
+        } catch (IOException e) {
+            System.out.println("stopped at " + clients.size() + " sessions: " + e);
+        }
+        // let the server pick up the tail of the accept queue
+        Thread.sleep(2000);
+
+        int sessions = clients.size();
+        long heap = usedHeap() - heapBefore;
+        long rss = rss() - rssBefore;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+        System.out.printf("mode=%s sessions=%d platformThreads=+%d heap=+%dKB (%d B/session) rss=+%dKB (%d B/session)%n",
+                mode, sessions, threads, heap / 1024, heap / Math.max(1, sessions),
+                rss / 1024, rss / Math.max(1, sessions));
+
+        // skip the orderly disconnect of every session, the numbers are already taken
+        System.exit(0);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        var runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Resident set size, so that native thread stacks are counted too. Linux only, 0 elsewhere.
+     */
+    private static long rss() throws IOException {
+        Path status = Path.of("/proc/self/status");
+        if (!Files.exists(status)) {
+            return 0;
+        }
+        return Files.readAllLines(status)
+                .stream()
+                .filter(l -> l.startsWith("VmRSS:"))
+                .mapToLong(l -> Long.parseLong(l.replaceAll("\\D", "")) * 1024)
+                .findFirst()
+                .orElse(0);
+    }
+}
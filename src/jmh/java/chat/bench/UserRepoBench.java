@@ -0,0 +1,80 @@
+package chat.bench;
+
+import chat.user.UserRepo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static chat.additional.Role.ADMIN;
+import static chat.additional.Role.USER;
+
+/**
+ * Role and ban checks that every command of a session makes, for a random user out of all of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Dchat.durability=async"})
+public class UserRepoBench {
+    @Param({"1000", "100000", "1000000"})
+    public int users;
+
+    private String[] logins;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Db.recoverEmpty();
+        logins = new String[users];
+        for (int i = 0; i < users; i++) {
+            logins[i] = "user" + i;
+            UserRepo.saveIfAbsent(logins[i], "-1861353340", List.of(USER.name()));
+        }
+        // shuffled, so that the lookups miss the caches
+        var random = new Random(42);
+        for (int i = users - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            String login = logins[i];
+            logins[i] = logins[j];
+            logins[j] = login;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Db.close();
+    }
+
+    @Benchmark
+    public boolean isUserHasRole() {
+        return UserRepo.isUserHasRole(nextLogin(), ADMIN.name());
+    }
+
+    @Benchmark
+    public boolean isUserBlocked() {
+        return UserRepo.isUserBlocked(nextLogin());
+    }
+
+    private String nextLogin() {
+        String login = logins[next];
+        next = next + 1 == users ? 0 : next + 1;
+        return login;
+    }
+}
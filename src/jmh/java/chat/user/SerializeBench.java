@@ -0,0 +1,69 @@
+package chat.user;
+
+import chat.additional.Durability;
+import chat.bench.Db;
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static chat.additional.Role.USER;
+
+/**
+ * The two paths a change takes to disk: a user line and a chat log record, encoded and appended to their journals.
+ * Both are async, a record costs its encoding and its share of the batched writes.
+ * In this package for the package-private chat log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.durability=async"})
+public class SerializeBench {
+    private static final Path LOG_PATH = Path.of("serializeBench.txt");
+
+    private User user;
+    private ChatLog log;
+    private long time;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Db.recoverEmpty();
+        user = new User("alice", "-1861353340", new CopyOnWriteArrayList<>(List.of(USER.name())), 0);
+        Files.deleteIfExists(LOG_PATH);
+        log = new ChatLog(LOG_PATH, new Gson(), Durability.ASYNC);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        log.close();
+        Db.close();
+    }
+
+    @Benchmark
+    public long serializeUser() {
+        return UserRepo.serialize(user);
+    }
+
+    @Benchmark
+    public long appendChatRecord() {
+        return log.append(ChatLogRecord.message(0, 1, "a message of an ordinary length", List.of(0), ++time));
+    }
+}
@@ -1,21 +1,96 @@
 package chat.additional;
 
 public enum Command {
-    AUTH("/auth"),
-    REGISTRATION("/registration"),
-    LIST("/list"),
-    CHAT("/chat"),
-    EXIT("/exit"),
-    STATISTIC("/stats"),
-    HISTORY("/history"),
-    UNREAD("/unread"),
-    GRANT("/grant"),
-    REVOKE("/revoke"),
-    KICK("/kick");
+    AUTH("/auth", 1),
+    REGISTRATION("/registration", 2),
+    LIST("/list", 3),
+    CHAT("/chat", 4),
+    EXIT("/exit", 5),
+    STATISTIC("/stats", 6),
+    HISTORY("/history", 7),
+    UNREAD("/unread", 8),
+    GRANT("/grant", 9),
+    REVOKE("/revoke", 10),
+    KICK("/kick", 11),
+    PROTOCOL("/protocol", 12),
+    ROOM("/room", 13),
+    BROADCAST("/broadcast", 14),
+    METRICS("/metrics", 15);
+
+    private static final Command[] byOpcode;
+    private static final Command[] byHash; // open addressing by the hash of msg, at most half full
+    private static final int HASH_MASK;
+
+    static {
+        int maxOpcode = 0;
+        for (Command command : values()) {
+            maxOpcode = Math.max(maxOpcode, command.opcode);
+        }
+        byOpcode = new Command[maxOpcode + 1];
+        byHash = new Command[Integer.highestOneBit(values().length) * 4];
+        HASH_MASK = byHash.length - 1;
+        for (Command command : values()) {
+            byOpcode[command.opcode] = command;
+            int i = hash(command.msg, command.msg.length()) & HASH_MASK;
+            while (byHash[i] != null) {
+                i = (i + 1) & HASH_MASK;
+            }
+            byHash[i] = command;
+        }
+    }
 
     public final String msg;
+    public final int opcode; // in binary frames, 0 is a plain text line
 
-    Command(String msg) {
+    Command(String msg, int opcode) {
         this.msg = msg;
+        this.opcode = opcode;
+    }
+
+    public static Command byOpcode(int opcode) {
+        return opcode > 0 && opcode < byOpcode.length ? byOpcode[opcode] : null;
+    }
+
+    /**
+     * Finds the command a line typed by a user starts with, in one pass over the command and without allocations.
+     * A command alone on the line matches in any case, a command followed by a space and its arguments as it is.
+     *
+     * @return null for a plain text
+     */
+    public static Command of(String line) {
+        if (line.isEmpty() || line.charAt(0) != '/') {
+            return null;
+        }
+        int end = line.indexOf(' ');
+        boolean hasArgs = end >= 0;
+        if (!hasArgs) {
+            end = line.length();
+        }
+        for (int i = hash(line, end) & HASH_MASK; byHash[i] != null; i = (i + 1) & HASH_MASK) {
+            Command command = byHash[i];
+            if (command.msg.length() == end && line.regionMatches(!hasArgs, 0, command.msg, 0, end)) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param command the command of the line, see {@link #of}
+     * @return arguments after the command and a space, null if the command is alone on the line
+     */
+    public static String argsOf(String line, Command command) {
+        return line.length() == command.msg.length() ? null : line.substring(command.msg.length() + 1);
+    }
+
+    /**
+     * Hash of the first chars of the string, the same in any case.
+     */
+    private static int hash(String s, int len) {
+        int hash = 0;
+        for (int i = 0; i < len; i++) {
+            hash = 31 * hash + Character.toLowerCase(s.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
     }
 }
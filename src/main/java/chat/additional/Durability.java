@@ -0,0 +1,10 @@
+package chat.additional;
+
+/**
+ * When a change written to a db file is acknowledged, see {@code chat.user.Journal}.
+ */
+public enum Durability {
+    SYNC,  // each record is written and fsynced on its own before the ack
+    GROUP, // records of concurrent requests share one write and one fsync, each is acked after it
+    ASYNC  // acked on append, written and fsynced in batches by interval or batch size
+}
@@ -0,0 +1,209 @@
+package chat.additional;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Unit of the wire protocol. Legacy clients exchange {@link DataOutputStream#writeUTF} frames which carry only the payload.
+ * After "/protocol binary" frames are: int length of the rest, byte opcode, byte flags, int correlation id, UTF-8 payload.
+ * <p>
+ * The opcode of a request is its {@link Command} with the arguments as payload, or {@link #TEXT} for a plain line.
+ * A reply repeats the opcode and the correlation id of its request, messages pushed by the server have correlation id 0.
+ * Frames of the UTF framing have no correlation id, so a reply is marked as one when it's made, see {@link #reply}.
+ * <p>
+ * Frames are immutable, each encoding is built once and shared by all recipients of the frame.
+ */
+public class Frame {
+    public static final int TEXT = 0;
+    public static final int MAX_UTF_LEN = 65535;
+    public static final int MAX_BINARY_LEN = 16 * 1024 * 1024;
+    public static final int HEADER_LEN = 1 + 1 + 4; // opcode, flags, correlation id
+
+    private static final int FLAG_DEFLATE = 1;
+    private static final int DEFLATE_THRESHOLD = 1024;
+
+    public final int opcode;
+    public final int correlationId;
+    public final String payload;
+    public final boolean isReply; // to a request of the client, it isn't written to the wire
+    // cached encodings, a race only builds the same bytes twice
+    private volatile byte[] utf;
+    private volatile byte[] binary;
+
+    public Frame(int opcode, int correlationId, String payload) {
+        this(opcode, correlationId, payload, false);
+    }
+
+    private Frame(int opcode, int correlationId, String payload, boolean isReply) {
+        this.opcode = opcode;
+        this.correlationId = correlationId;
+        this.payload = payload;
+        this.isReply = isReply;
+    }
+
+    /**
+     * @return reply to the request of the opcode and the correlation id
+     */
+    public static Frame reply(int opcode, int correlationId, String payload) {
+        return new Frame(opcode, correlationId, payload, true);
+    }
+
+    public static Frame text(String payload) {
+        return new Frame(TEXT, 0, payload);
+    }
+
+    /**
+     * Frame of a line typed by a user: a command with its arguments, or a plain text.
+     */
+    public static Frame fromLine(String line, int correlationId) {
+        Command command = Command.of(line);
+        if (command == null) {
+            return new Frame(TEXT, correlationId, line);
+        }
+        String args = Command.argsOf(line, command);
+        return new Frame(command.opcode, correlationId, args == null ? "" : args);
+    }
+
+    public String toLine() {
+        Command command = Command.byOpcode(opcode);
+        if (command == null) {
+            return payload;
+        }
+        return payload.isEmpty() ? command.msg : command.msg + " " + payload;
+    }
+
+    public boolean isPush() {
+        return !isReply;
+    }
+
+    /**
+     * @return read-only view of the shared encoding, positioned at its start
+     */
+    public ByteBuffer encodeUtf() throws IOException {
+        return ByteBuffer.wrap(utfBytes()).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return read-only view of the shared encoding, positioned at its start
+     */
+    public ByteBuffer encodeBinary() {
+        return ByteBuffer.wrap(binaryBytes()).asReadOnlyBuffer();
+    }
+
+    public void writeUtf(DataOutputStream out) throws IOException {
+        out.write(utfBytes());
+    }
+
+    public void writeBinary(DataOutputStream out) throws IOException {
+        out.write(binaryBytes());
+    }
+
+    private byte[] utfBytes() throws IOException {
+        byte[] bytes = utf;
+        if (bytes == null) {
+            var out = new ByteArrayOutputStream(payload.length() + 2);
+            new DataOutputStream(out).writeUTF(payload);
+            utf = bytes = out.toByteArray();
+        }
+        return bytes;
+    }
+
+    private byte[] binaryBytes() {
+        byte[] bytes = binary;
+        if (bytes == null) {
+            binary = bytes = buildBinary();
+        }
+        return bytes;
+    }
+
+    private byte[] buildBinary() {
+        byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+        int flags = 0;
+        if (data.length > DEFLATE_THRESHOLD) {
+            data = deflate(data);
+            flags |= FLAG_DEFLATE;
+        }
+
+        var buffer = ByteBuffer.allocate(4 + HEADER_LEN + data.length);
+        buffer.putInt(HEADER_LEN + data.length)
+                .put((byte) opcode)
+                .put((byte) flags)
+                .putInt(correlationId)
+                .put(data);
+        return buffer.array();
+    }
+
+    /**
+     * @param frame frame without its length
+     */
+    public static Frame decodeBinary(byte[] frame, int offset, int len) throws IOException {
+        var buffer = ByteBuffer.wrap(frame, offset, len);
+        int opcode = buffer.get() & 0xFF;
+        int flags = buffer.get() & 0xFF;
+        int correlationId = buffer.getInt();
+
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        if ((flags & FLAG_DEFLATE) != 0) {
+            data = inflate(data);
+        }
+        return new Frame(opcode, correlationId, new String(data, StandardCharsets.UTF_8));
+    }
+
+    public static Frame readBinary(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < HEADER_LEN || len > MAX_BINARY_LEN) {
+            throw new IOException("Incorrect frame length: " + len);
+        }
+        byte[] frame = new byte[len];
+        in.readFully(frame);
+        return decodeBinary(frame, 0, len);
+    }
+
+    private static byte[] deflate(byte[] data) {
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            var out = new ByteArrayOutputStream(data.length / 2);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            var out = new ByteArrayOutputStream(data.length * 2);
+            byte[] chunk = new byte[8192];
+            while (!inflater.finished()) {
+                int len = inflater.inflate(chunk);
+                if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                out.write(chunk, 0, len);
+                if (out.size() > MAX_BINARY_LEN) {
+                    throw new IOException("Compressed frame is too big");
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package chat.additional;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of latencies in buckets of about 12% width: 8 linear buckets per power of two.
+ * Recording is lock-free and allocation-free, percentiles are the upper bounds of their buckets.
+ * <p>
+ * Every message of every chat records here, so counts are striped by thread: sessions recording at the same time
+ * on different cores don't fight over the cache lines of the same buckets. Reads add the stripes up.
+ */
+public class LatencyHistogram implements LatencyMXBean {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = indexOf(Long.MAX_VALUE) + 1;
+    // a power of two up to the cores, 4 KB each
+    private static final int STRIPES = Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()));
+
+    private final AtomicLongArray counts; // stripes of buckets
+    private final LongAdder count;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(STRIPES * BUCKETS);
+        this.count = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        int stripe = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + indexOf(value));
+        count.increment();
+        // written only by a new max, not by every record
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) ;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public long getP50() {
+        return getPercentile(50);
+    }
+
+    @Override
+    public long getP99() {
+        return getPercentile(99);
+    }
+
+    @Override
+    public long getP999() {
+        return getPercentile(99.9);
+    }
+
+    /**
+     * @param percentile in (0, 100]
+     * @return nanos that the given share of the recorded latencies doesn't exceed, 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                seen += counts.get(stripe * BUCKETS + i);
+            }
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "p50 " + format(getPercentile(50))
+                + ", p99 " + format(getPercentile(99))
+                + ", p99.9 " + format(getPercentile(99.9))
+                + ", max " + format(getMax());
+    }
+
+    public static String format(long nanos) {
+        if (nanos < TimeUnit.MICROSECONDS.toNanos(1)) {
+            return nanos + "ns";
+        }
+        if (nanos < TimeUnit.MILLISECONDS.toNanos(1)) {
+            return String.format("%.1fus", nanos / 1e3);
+        }
+        return String.format("%.2fms", nanos / 1e6);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
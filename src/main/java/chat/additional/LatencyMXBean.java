@@ -0,0 +1,18 @@
+package chat.additional;
+
+/**
+ * JMX view of a {@link LatencyHistogram}, times in nanos.
+ */
+public interface LatencyMXBean {
+    long getCount();
+
+    long getMax();
+
+    long getP50();
+
+    long getP99();
+
+    long getP999();
+
+    void reset();
+}
@@ -0,0 +1,94 @@
+package chat.additional;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Latencies of the server: of each command, of the fan-out of chat messages and of serializing db records.
+ * A record is a few atomic increments, so they're always on. They are MXBeans in the "chat" domain
+ * next to the gauges registered by the server, and /metrics reports them.
+ */
+public class Metrics {
+    public static final String DOMAIN = "chat";
+    public static final LatencyHistogram MESSAGE; // a plain line, sent to the current chat
+    public static final LatencyHistogram FAN_OUT; // of one message to the users in the chat
+    public static final LatencyHistogram USER_SERIALIZE; // of a user, until it's queued to the journal
+    public static final LatencyHistogram CHAT_SERIALIZE; // of a chat log record, until it's queued to the journal
+    private static final Map<Command, LatencyHistogram> commands;
+
+    static {
+        MESSAGE = new LatencyHistogram();
+        FAN_OUT = new LatencyHistogram();
+        USER_SERIALIZE = new LatencyHistogram();
+        CHAT_SERIALIZE = new LatencyHistogram();
+        commands = new EnumMap<>(Command.class);
+        for (Command command : Command.values()) {
+            commands.put(command, new LatencyHistogram());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @param command null for a plain line
+     */
+    public static LatencyHistogram of(Command command) {
+        return command == null ? MESSAGE : commands.get(command);
+    }
+
+    /**
+     * Registers the latencies and the given gauges of the server, replacing the ones registered before.
+     *
+     * @param mxBeans by the name of the MXBean in the domain, e.g. "type=Server"
+     */
+    public static void register(Map<String, Object> mxBeans) {
+        for (Command command : Command.values()) {
+            register("type=Command,name=" + command.name().toLowerCase(), commands.get(command));
+        }
+        register("type=Command,name=message", MESSAGE);
+        register("type=Latency,name=fanOut", FAN_OUT);
+        register("type=Latency,name=userSerialize", USER_SERIALIZE);
+        register("type=Latency,name=chatSerialize", CHAT_SERIALIZE);
+        mxBeans.forEach(Metrics::register);
+    }
+
+    private static void register(String name, Object mxBean) {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            var objectName = new ObjectName(DOMAIN + ":" + name);
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(mxBean, objectName);
+        } catch (JMException e) {
+            // the server runs without it
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return a line per latency recorded at least once: name, count and percentiles
+     */
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        commands.forEach((command, latency) -> addLine(lines, command.msg, latency));
+        addLine(lines, "message", MESSAGE);
+        addLine(lines, "fan-out", FAN_OUT);
+        addLine(lines, "user serialize", USER_SERIALIZE);
+        addLine(lines, "chat serialize", CHAT_SERIALIZE);
+        return lines;
+    }
+
+    private static void addLine(List<String> lines, String name, LatencyHistogram latency) {
+        if (latency.getCount() > 0) {
+            lines.add(name + " " + latency.getCount() + ": " + latency);
+        }
+    }
+}
@@ -7,6 +7,9 @@ public enum ServerMessage {
     LOGIN_ALREADY_TAKEN("this login is already taken! Choose another one."),
     USER_NOT_ONLINE("the user is not online!"),
     INCORRECT_COMMAND("incorrect command!"),
+    INCORRECT_ROOM_NAME("incorrect room name!"),
+    SERVER_BUSY("the server is busy, retry later!"),
+    CHAT_UNAVAILABLE("the server of the chat is not reachable, retry later!"),
 
     AUTHORIZE_OR_REGISTER("authorize or register"),
     REGISTERED_SUCCESSFULLY("you are registered successfully!"),
@@ -15,8 +18,12 @@ public enum ServerMessage {
     LIST_COMMAND("use /list command to choose a user to text!"),
     NO_ONE_ONLINE("no one online"),
     ONLINE("online: "),
+    LIST_MORE("use /list more for the next users"),
+    PRESENCE_SUBSCRIBED("you will be notified when users go online or offline"),
+    PRESENCE_UNSUBSCRIBED("you will no longer be notified when users go online or offline"),
     VAL_SHOULD_BE_POSITIVE("value should be positive"),
     NO_ONE_UNREAD("no one unread"),
+    BINARY_PROTOCOL("binary protocol enabled"),
 
     ROLE_WAS_GRANTED_PREVIOUSLY("role was granted previously"),
     ROLE_GRANTED("role was granted successfully"),
@@ -0,0 +1,7 @@
+package chat.additional;
+
+public enum ServerMode {
+    BLOCKING, // platform thread per connection
+    VIRTUAL,  // virtual thread per connection
+    NIO       // fixed set of selector event loops
+}
@@ -3,4 +3,43 @@ package chat.additional;
 public class Settings {
     public static final int DEFAULT_PORT = 12345;
     public static final String DEFAULT_HOST = "127.0.0.1";
+    // of the clients, another one per node of a cluster on the same host
+    public static final int PORT = Integer.getInteger("chat.port", DEFAULT_PORT);
+    public static final int DEFAULT_EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    public static final int OUTBOUND_QUEUE_CAPACITY = Integer.getInteger("chat.outboundQueueCapacity", 1024);
+    public static final int OUTBOUND_BATCH_SIZE = Integer.getInteger("chat.outboundBatchSize", 64);
+    public static final SlowConsumerPolicy SLOW_CONSUMER_POLICY = SlowConsumerPolicy.valueOf(
+            System.getProperty("chat.slowConsumerPolicy", SlowConsumerPolicy.COALESCE.name()).toUpperCase());
+
+    // messages kept in memory per chat, older ones are read from the log; at least the 25 a user sees on opening a chat
+    public static final int HISTORY_HOT_TAIL = Math.max(25, Integer.getInteger("chat.historyHotTail", 100));
+    // estimated bytes of in-memory history of all chats, the least recently used idle chats drop theirs above it
+    public static final long HISTORY_MEMORY_BUDGET = Long.getLong("chat.historyMemoryBudget", 64L * 1024 * 1024);
+
+    // when a change to a db file is acknowledged, see Durability
+    public static final Durability DURABILITY = Durability.valueOf(
+            System.getProperty("chat.durability", Durability.GROUP.name()).toUpperCase());
+    // records per write and fsync at most
+    public static final int JOURNAL_BATCH_SIZE = Integer.getInteger("chat.journalBatchSize", 256);
+    // longest wait of the async mode for a full batch
+    public static final long JOURNAL_FLUSH_INTERVAL_MS = Long.getLong("chat.journalFlushIntervalMs", 10);
+    // seconds between snapshots of the db files, the last one is taken on shutdown; 0 for that one only
+    public static final long SNAPSHOT_INTERVAL_SEC = Long.getLong("chat.snapshotIntervalSec", 300);
+
+    // threads checking passwords of /auth and /registration, and requests queued for them before "busy" replies
+    public static final int AUTH_WORKERS = Integer.getInteger("chat.authWorkers", DEFAULT_EVENT_LOOPS);
+    public static final int AUTH_QUEUE_DEPTH = Integer.getInteger("chat.authQueueDepth", 256);
+    // how long and for how many users a verified login skips the password check
+    public static final long AUTH_CACHE_TTL_SEC = Long.getLong("chat.authCacheTtlSec", 600);
+    public static final int AUTH_CACHE_SIZE = Integer.getInteger("chat.authCacheSize", 100_000);
+
+    // logins per /list reply, the next ones with /list more
+    public static final int LIST_PAGE_SIZE = Math.max(1, Integer.getInteger("chat.listPageSize", 100));
+
+    // cluster mode: host:port of the transport between the nodes, of every node and in the same order on every one,
+    // separated by commas; empty for a single server
+    public static final String CLUSTER_NODES = System.getProperty("chat.clusterNodes", "");
+    // index of this node in them
+    public static final int CLUSTER_NODE_ID = Integer.getInteger("chat.clusterNodeId", 0);
 }
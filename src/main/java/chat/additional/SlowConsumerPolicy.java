@@ -0,0 +1,12 @@
+package chat.additional;
+
+/**
+ * What a session does when its client doesn't read fast enough and the outbound queue is full.
+ * Replies to requests are never dropped or merged: they're queued past the capacity, up to twice it,
+ * and a client that lets even that fill up is disconnected.
+ */
+public enum SlowConsumerPolicy {
+    DROP,       // drop the new message
+    DISCONNECT, // close the connection
+    COALESCE    // merge the new message into the last queued one while it fits into one frame
+}
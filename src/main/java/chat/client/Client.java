@@ -1,6 +1,7 @@
 package chat.client;
 
 import chat.additional.Command;
+import chat.additional.Frame;
 import chat.additional.Settings;
 
 import java.io.DataInputStream;
@@ -14,15 +15,20 @@ import static chat.additional.ServerMessage.*;
 public class Client {
     private final int PORT;
     private final String HOST;
+    private final boolean useBinaryProtocol;
     private Thread messageReader;
+    private volatile boolean isReadingBinary = false;
+    private int correlationId = 0;
 
-    public Client(int port, String host) {
+    public Client(int port, String host, boolean useBinaryProtocol) {
         this.PORT = port;
         this.HOST = host;
+        this.useBinaryProtocol = useBinaryProtocol;
     }
 
     public static void main(String[] args) {
-        new Client(Settings.DEFAULT_PORT, Settings.DEFAULT_HOST).run();
+        boolean binary = args.length > 0 && "binary".equalsIgnoreCase(args[0]);
+        new Client(Settings.DEFAULT_PORT, Settings.DEFAULT_HOST, binary).run();
     }
 
     private void run() {
@@ -33,18 +39,18 @@ public class Client {
             try (DataInputStream inStream = new DataInputStream(socket.getInputStream());
                  DataOutputStream outStream = new DataOutputStream(socket.getOutputStream())) {
 
+                if (useBinaryProtocol) {
+                    // the server switches before handling the next frame, replies switch after the confirmation
+                    outStream.writeUTF(Command.PROTOCOL.msg + " binary");
+                }
+
                 // register/auth
                 while (true) {
-                    String msg = inStream.readUTF();
-
-                    if (AUTHORIZE_OR_REGISTER.msg.equalsIgnoreCase(msg)
-                            || INCORRECT_LOGIN.msg.equalsIgnoreCase(msg)
-                            || LOGIN_ALREADY_TAKEN.msg.equals(msg)
-                            || INCORRECT_PASSWORD.msg.equals(msg)
-                            || SHORT_PASSWORD.msg.equals(msg)
-                            || NOT_IN_CHAT.msg.equals(msg)) {
+                    String msg = read(inStream);
+
+                    if (asksForCredentials(msg)) {
                         System.out.println(msg);
-                        outStream.writeUTF(scn.nextLine());
+                        write(outStream, scn.nextLine());
                     } else if (REGISTERED_SUCCESSFULLY.msg.equals(msg)
                             || AUTHORIZED_SUCCESSFULLY.msg.equals(msg)) {
                         System.out.println(msg);
@@ -61,7 +67,7 @@ public class Client {
                 // send messages
                 while (true) {
                     String msg = scn.nextLine();
-                    outStream.writeUTF(msg);
+                    write(outStream, msg);
                     if (Command.EXIT.msg.equalsIgnoreCase(msg)) {
                         break;
                     }
@@ -73,11 +79,46 @@ public class Client {
         }
     }
 
-    public static Thread createMessageReader(DataInputStream inputStream, Socket socket) {
+    /**
+     * @return true if the server waits for another /auth or /registration, e.g. after a wrong password
+     * or while it's too busy to check the last one
+     */
+    static boolean asksForCredentials(String msg) {
+        return AUTHORIZE_OR_REGISTER.msg.equalsIgnoreCase(msg)
+                || INCORRECT_LOGIN.msg.equalsIgnoreCase(msg)
+                || LOGIN_ALREADY_TAKEN.msg.equals(msg)
+                || INCORRECT_PASSWORD.msg.equals(msg)
+                || SHORT_PASSWORD.msg.equals(msg)
+                || NOT_IN_CHAT.msg.equals(msg)
+                || SERVER_BUSY.msg.equals(msg);
+    }
+
+    private String read(DataInputStream inStream) throws IOException {
+        if (isReadingBinary) {
+            return Frame.readBinary(inStream).payload;
+        }
+        String msg = inStream.readUTF();
+        if (useBinaryProtocol && BINARY_PROTOCOL.msg.equals(msg)) {
+            isReadingBinary = true;
+            return read(inStream);
+        }
+        return msg;
+    }
+
+    private void write(DataOutputStream outStream, String line) throws IOException {
+        if (useBinaryProtocol) {
+            Frame.fromLine(line, ++correlationId).writeBinary(outStream);
+            outStream.flush();
+        } else {
+            outStream.writeUTF(line);
+        }
+    }
+
+    public Thread createMessageReader(DataInputStream inputStream, Socket socket) {
         var t = new Thread(() -> {
             while (!socket.isClosed()) {
                 try {
-                    System.out.println(inputStream.readUTF());
+                    System.out.println(read(inputStream));
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -0,0 +1,143 @@
+package chat.server;
+
+import chat.additional.ServerMessage;
+import chat.additional.Settings;
+import chat.user.UserRepo;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static chat.additional.Role.USER;
+import static chat.additional.ServerMessage.*;
+
+/**
+ * Runs the password checks of /auth and /registration on a bounded pool, so that a storm of logins
+ * after a restart takes a fixed share of the CPU. Requests over the queue depth are refused at once.
+ * <p>
+ * Users verified recently skip the pool: their credentials are compared with a digest kept for a while.
+ */
+class Authenticator {
+    private final Server server;
+    private final ThreadPoolExecutor pool;
+    private final Map<String, Verified> verified; // by login
+    private final long ttlNanos;
+
+    Authenticator(Server server) {
+        this.server = server;
+        int workers = Math.max(1, Settings.AUTH_WORKERS);
+        var threadNumber = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, Settings.AUTH_QUEUE_DEPTH)),
+                r -> {
+                    var thread = new Thread(r, "auth-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.verified = new ConcurrentHashMap<>();
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Settings.AUTH_CACHE_TTL_SEC);
+    }
+
+    /**
+     * Checks the credentials of a user verified recently, without the pool.
+     *
+     * @return AUTHORIZED_SUCCESSFULLY, or null if the user has to be verified by {@link #submit}
+     */
+    ServerMessage authenticateCached(String login, String pass) {
+        Verified entry = verified.get(login);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.verifiedAt > ttlNanos
+                // the stored password is what was verified, a changed user is verified again
+                || !entry.storedPass.equals(UserRepo.getUserPassByLogin(login))) {
+            verified.remove(login, entry);
+            return null;
+        }
+        return MessageDigest.isEqual(entry.digest, digest(pass)) ? AUTHORIZED_SUCCESSFULLY : null;
+    }
+
+    /**
+     * Queues the check of /auth or /registration.
+     *
+     * @return its result, null if the queue is full and the client should retry
+     */
+    CompletableFuture<ServerMessage> submit(boolean isRegistration, String login, String pass) {
+        var result = new CompletableFuture<ServerMessage>();
+        try {
+            pool.execute(() -> {
+                try {
+                    ServerMessage msg = isRegistration
+                            ? server.registerUser(login, pass, List.of(USER.name()))
+                            : server.authenticateUser(login, pass);
+                    if (msg == REGISTERED_SUCCESSFULLY || msg == AUTHORIZED_SUCCESSFULLY) {
+                        remember(login, pass);
+                    }
+                    result.complete(msg);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        return result;
+    }
+
+    int getThreads() {
+        return pool.getPoolSize();
+    }
+
+    int getQueued() {
+        return pool.getQueue().size();
+    }
+
+    void stop() {
+        pool.shutdownNow();
+    }
+
+    private void remember(String login, String pass) {
+        String storedPass = UserRepo.getUserPassByLogin(login);
+        if (storedPass == null) {
+            return;
+        }
+        if (verified.size() >= Settings.AUTH_CACHE_SIZE) {
+            long now = System.nanoTime();
+            verified.values().removeIf(v -> now - v.verifiedAt > ttlNanos);
+            if (verified.size() >= Settings.AUTH_CACHE_SIZE) {
+                return;
+            }
+        }
+        verified.put(login, new Verified(digest(pass), storedPass, System.nanoTime()));
+    }
+
+    private static byte[] digest(String pass) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(pass.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Verified {
+        private final byte[] digest;
+        private final String storedPass;
+        private final long verifiedAt;
+
+        Verified(byte[] digest, String storedPass, long verifiedAt) {
+            this.digest = digest;
+            this.storedPass = storedPass;
+            this.verifiedAt = verifiedAt;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package chat.server;
+
+import chat.additional.Frame;
+
+import java.io.IOException;
+
+/**
+ * Decoder of the length-prefixed binary framing, see {@link Frame}.
+ */
+class BinaryFrameDecoder extends FrameDecoder {
+    private static final int LENGTH_LEN = 4;
+
+    @Override
+    public Frame next() throws IOException {
+        if (available() < LENGTH_LEN) {
+            return null;
+        }
+        int frameLen = ((pending[start] & 0xFF) << 24) | ((pending[start + 1] & 0xFF) << 16)
+                | ((pending[start + 2] & 0xFF) << 8) | (pending[start + 3] & 0xFF);
+        if (frameLen < Frame.HEADER_LEN || frameLen > Frame.MAX_BINARY_LEN) {
+            throw new IOException("Incorrect frame length: " + frameLen);
+        }
+        if (available() < LENGTH_LEN + frameLen) {
+            return null;
+        }
+
+        Frame frame = Frame.decodeBinary(pending, start + LENGTH_LEN, frameLen);
+        start += LENGTH_LEN + frameLen;
+        return frame;
+    }
+}
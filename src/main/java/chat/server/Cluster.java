@@ -0,0 +1,494 @@
+package chat.server;
+
+import chat.additional.Frame;
+import chat.user.UserRepo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.Collectors;
+
+/**
+ * Node of a cluster of servers sharing the users. A chat is owned by the node the {@link HashRing} maps its key to,
+ * its log, unread marks and subscribers are on that node only.
+ * <p>
+ * A node connects to every other node and writes to it from a queue on a thread of its own,
+ * and reads the connection of every other node to it on another one. Over them it:
+ * <ul>
+ * <li>replicates the user records it writes, the last record of a login wins as in the db file;</li>
+ * <li>announces its users going online and offline, and all of its online users when a node connects;</li>
+ * <li>forwards the chat requests of a user in a chat owned by another node to a proxy session there,
+ * whose replies and pushes are delivered back to the session of the user;</li>
+ * <li>passes kicks, pushes and broadcasts to the nodes the users are on.</li>
+ * </ul>
+ * Messages to a node that isn't connected are dropped, the state is sent in full when it connects again.
+ */
+class Cluster {
+    static final int LOCAL = -1; // owner of the chats of this node
+    private static final int POINTS_PER_NODE = 128;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final long RECONNECT_DELAY_MS = 500;
+    private static final long PING_INTERVAL_MS = 1000; // a write to a node that is gone fails on the next one
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // types of the messages, a connection starts with a hello of the node writing it
+    private static final byte HELLO = 0;
+    private static final byte PING = 1;
+    private static final byte ONLINE = 2;
+    private static final byte OFFLINE = 3;
+    private static final byte USER = 4;
+    private static final byte FORWARD = 5;
+    private static final byte DELIVER = 6;
+    private static final byte CLOSE = 7;
+    private static final byte KICK = 8;
+    private static final byte PUSH = 9;
+    private static final byte BROADCAST = 10;
+
+    private final Server server;
+    private final int nodeId;
+    private final List<InetSocketAddress> addresses;
+    private final HashRing ring;
+    private final Peer[] peers; // by node, null for this one
+    private final AtomicReferenceArray<Socket> inbound; // connection read from each node
+    private final Map<String, Integer> remoteLogins; // node of each user online on another node, by login
+    private final Map<Long, Session> forwarding; // sessions in chats owned by other nodes, by id
+    private final List<Map<Long, RemoteConnection>> proxies; // by node of the user, by id of the user's session there
+    private ServerSocket serverSocket;
+    private volatile boolean isStopped;
+
+    /**
+     * @param nodes  host:port of the transport of every node, in the same order on every node
+     * @param nodeId index of this node in them
+     */
+    Cluster(Server server, List<String> nodes, int nodeId) {
+        if (nodeId < 0 || nodeId >= nodes.size()) {
+            throw new IllegalArgumentException("Incorrect node id " + nodeId + " of " + nodes.size() + " nodes");
+        }
+        this.server = server;
+        this.nodeId = nodeId;
+        this.addresses = nodes.stream().map(Cluster::parseAddress).collect(Collectors.toList());
+        this.ring = new HashRing(nodes, POINTS_PER_NODE);
+        this.peers = new Peer[nodes.size()];
+        this.inbound = new AtomicReferenceArray<>(nodes.size());
+        this.remoteLogins = new ConcurrentHashMap<>();
+        this.forwarding = new ConcurrentHashMap<>();
+        this.proxies = new ArrayList<>(nodes.size());
+        for (int node = 0; node < nodes.size(); node++) {
+            peers[node] = node == nodeId ? null : new Peer(node);
+            proxies.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    private static InetSocketAddress parseAddress(String node) {
+        int colon = node.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Incorrect node, host:port expected: " + node);
+        }
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    /**
+     * Listens to the other nodes and starts connecting to them. User records written from now on are replicated.
+     */
+    void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(addresses.get(nodeId), 50);
+        startDaemon("cluster-accept", this::accept);
+
+        UserRepo.replicate(record -> broadcast(message(USER, out -> writeText(out, record))));
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.thread = startDaemon("cluster-to-" + peer.node, peer);
+            }
+        }
+    }
+
+    void stop() {
+        isStopped = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Peer peer : peers) {
+            if (peer != null && peer.thread != null) {
+                peer.thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return node owning the chat, {@link #LOCAL} for this one
+     */
+    int ownerOf(String chatKey) {
+        int node = ring.nodeOf(chatKey);
+        return node == nodeId ? LOCAL : node;
+    }
+
+    boolean isOnlineRemotely(String login) {
+        return remoteLogins.containsKey(login);
+    }
+
+    void announce(String login, boolean isOnline) {
+        broadcast(message(isOnline ? ONLINE : OFFLINE, out -> out.writeUTF(login)));
+    }
+
+    /**
+     * Has the proxy of the session on the node handle the frame, it's created by the first one.
+     *
+     * @return false if the node isn't connected
+     */
+    boolean forward(int node, Session session, Frame frame) {
+        long id = session.getId();
+        forwarding.put(id, session);
+        return peers[node].send(message(FORWARD, out -> {
+            out.writeLong(id);
+            out.writeUTF(session.getLogin());
+            frame.writeBinary(out);
+        }));
+    }
+
+    /**
+     * Closes the proxy of the session on the node, it leaves the chat there.
+     */
+    void closeProxy(int node, Session session) {
+        long id = session.getId();
+        forwarding.remove(id);
+        peers[node].send(message(CLOSE, out -> out.writeLong(id)));
+    }
+
+    /**
+     * Sends a frame of a proxy to the session of its user.
+     */
+    void deliver(int node, long sessionId, Frame frame) {
+        peers[node].send(message(DELIVER, out -> {
+            out.writeLong(sessionId);
+            out.writeBoolean(frame.isReply);
+            frame.writeBinary(out);
+        }));
+    }
+
+    /**
+     * @return false if the user isn't online on a connected node
+     */
+    boolean kick(String login) {
+        return sendToNodeOf(login, message(KICK, out -> out.writeUTF(login)));
+    }
+
+    /**
+     * @return false if the user isn't online on a connected node
+     */
+    boolean push(String login, Frame frame) {
+        return sendToNodeOf(login, message(PUSH, out -> {
+            out.writeUTF(login);
+            frame.writeBinary(out);
+        }));
+    }
+
+    /**
+     * Pushes the frame to the users of the other nodes.
+     *
+     * @return number of users online on the other nodes
+     */
+    int broadcast(Frame frame) {
+        broadcast(message(BROADCAST, frame::writeBinary));
+        return remoteLogins.size();
+    }
+
+    private boolean sendToNodeOf(String login, byte[] message) {
+        Integer node = remoteLogins.get(login);
+        return node != null && peers[node].send(message);
+    }
+
+    private void broadcast(byte[] message) {
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.send(message);
+            }
+        }
+    }
+
+    private void accept() {
+        while (!isStopped) {
+            try {
+                Socket socket = serverSocket.accept();
+                startDaemon("cluster-from", () -> read(socket));
+            } catch (IOException e) {
+                if (!isStopped) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles the messages of a node in order until its connection is lost.
+     */
+    private void read(Socket socket) {
+        int node = LOCAL;
+        try (socket) {
+            var in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            if (in.readByte() != HELLO) {
+                throw new IOException("No hello from " + socket.getRemoteSocketAddress());
+            }
+            node = in.readInt();
+            if (node < 0 || node >= peers.length || node == nodeId) {
+                throw new IOException("Incorrect node " + node + " from " + socket.getRemoteSocketAddress());
+            }
+            Thread.currentThread().setName("cluster-from-" + node);
+            // a node that restarted connects again, what it told before is stale
+            Socket previous = inbound.getAndSet(node, socket);
+            if (previous != null) {
+                previous.close();
+            }
+            leave(node);
+            System.out.println("Cluster: node " + node + " connected");
+
+            while (true) {
+                handle(node, in);
+            }
+        } catch (EOFException e) {
+            // the node stopped
+        } catch (IOException e) {
+            if (!isStopped) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (node != LOCAL && inbound.compareAndSet(node, socket, null)) {
+                leave(node);
+                System.out.println("Cluster: node " + node + " disconnected");
+            }
+        }
+    }
+
+    private void handle(int node, DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case PING -> {
+            }
+            case ONLINE -> {
+                String login = in.readUTF();
+                remoteLogins.put(login, node);
+                server.addRemoteLogin(login);
+            }
+            case OFFLINE -> {
+                String login = in.readUTF();
+                if (remoteLogins.remove(login, node)) {
+                    server.removeRemoteLogin(login);
+                }
+            }
+            case USER -> UserRepo.apply(readText(in));
+            case FORWARD -> {
+                long id = in.readLong();
+                String login = in.readUTF();
+                Frame frame = Frame.readBinary(in);
+                proxies.get(node).computeIfAbsent(id, k -> RemoteConnection.open(this, node, id, server, login))
+                        .receive(frame);
+            }
+            case DELIVER -> {
+                long id = in.readLong();
+                boolean isReply = in.readBoolean();
+                Frame frame = Frame.readBinary(in);
+                if (isReply) {
+                    frame = Frame.reply(frame.opcode, frame.correlationId, frame.payload);
+                }
+                Session session = forwarding.get(id);
+                if (session != null) {
+                    session.sendToClient(frame);
+                }
+            }
+            case CLOSE -> {
+                RemoteConnection proxy = proxies.get(node).remove(in.readLong());
+                if (proxy != null) {
+                    proxy.getSession().close();
+                }
+            }
+            case KICK -> {
+                Session session = server.getSession(in.readUTF());
+                if (session != null) {
+                    session.kicked();
+                }
+            }
+            case PUSH -> {
+                Session session = server.getSession(in.readUTF());
+                Frame frame = Frame.readBinary(in);
+                if (session != null) {
+                    session.sendToClient(frame);
+                }
+            }
+            case BROADCAST -> server.broadcastLocally(Frame.readBinary(in));
+            default -> throw new IOException("Incorrect message type " + type + " from node " + node);
+        }
+    }
+
+    /**
+     * Drops the users and the proxies of a node that disconnected.
+     */
+    private void leave(int node) {
+        remoteLogins.forEach((login, n) -> {
+            if (n == node && remoteLogins.remove(login, node)) {
+                server.removeRemoteLogin(login);
+            }
+        });
+        Map<Long, RemoteConnection> nodeProxies = proxies.get(node);
+        for (Long id : nodeProxies.keySet()) {
+            RemoteConnection proxy = nodeProxies.remove(id);
+            if (proxy != null) {
+                proxy.getSession().close();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface MessageBody {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] message(byte type, MessageBody body) {
+        var bytes = new ByteArrayOutputStream(64);
+        var out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            body.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown by a stream in memory
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > Frame.MAX_BINARY_LEN) {
+            throw new IOException("Incorrect text length: " + len);
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Thread startDaemon(String name, Runnable task) {
+        var thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public String toString() {
+        int connected = 0;
+        int proxySessions = 0;
+        for (int node = 0; node < peers.length; node++) {
+            if (peers[node] != null && peers[node].isConnected) {
+                connected++;
+            }
+            proxySessions += proxies.get(node).size();
+        }
+        return "cluster: node " + nodeId + " of " + peers.length + ", " + connected + " nodes connected, "
+                + remoteLogins.size() + " users online on them, " + forwarding.size() + " sessions in their chats, "
+                + proxySessions + " proxy sessions";
+    }
+
+    /**
+     * Connection to another node, written by a thread of its own. It's connected again until the cluster stops.
+     */
+    private final class Peer implements Runnable {
+        private final int node;
+        private final BlockingQueue<byte[]> queue;
+        private volatile boolean isConnected;
+        private Thread thread;
+
+        Peer(int node) {
+            this.node = node;
+            this.queue = new LinkedBlockingQueue<>();
+        }
+
+        /**
+         * @return false if the node isn't connected, the message is dropped
+         */
+        boolean send(byte[] message) {
+            if (!isConnected) {
+                return false;
+            }
+            queue.add(message);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (!isStopped) {
+                try (var socket = new Socket()) {
+                    socket.connect(addresses.get(node), CONNECT_TIMEOUT_MS);
+                    socket.setTcpNoDelay(true);
+                    var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+                    queue.clear();
+                    // changes made from now on are queued, they're written after the state and may repeat it
+                    isConnected = true;
+                    out.write(message(HELLO, o -> o.writeInt(nodeId)));
+                    writeState(out);
+                    out.flush();
+
+                    while (true) {
+                        byte[] message = queue.poll(PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                        if (message == null) {
+                            out.write(PING);
+                        } else {
+                            do {
+                                out.write(message);
+                            } while ((message = queue.poll()) != null);
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // the node is down or restarting
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    isConnected = false;
+                }
+
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Users online on this node and all user records, what the node could have missed while disconnected.
+         */
+        private void writeState(DataOutputStream out) throws IOException {
+            for (Session session : server.getSessions()) {
+                String login = session.getLogin();
+                out.write(message(ONLINE, o -> o.writeUTF(login)));
+            }
+            for (String record : UserRepo.getRecords()) {
+                out.write(message(USER, o -> writeText(o, record)));
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package chat.server;
+
+import java.io.IOException;
+
+/**
+ * Handles a command of an identified user, see {@link CommandRegistry}.
+ */
+@FunctionalInterface
+interface CommandHandler {
+    /**
+     * @param args arguments after the command, null if there are none
+     * @return false if the session should be closed
+     */
+    boolean handle(Session session, String args) throws IOException;
+}
@@ -0,0 +1,50 @@
+package chat.server;
+
+import chat.additional.Command;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Handlers by command. A command is dispatched to its handler if its arguments are as the handler declares,
+ * a command without a handler or with other arguments is incorrect. Adding a command is registering its handler.
+ */
+class CommandRegistry {
+    private final Map<Command, Entry> entries;
+
+    enum Arguments {
+        NONE,
+        REQUIRED,
+        OPTIONAL;
+
+        boolean accept(String args) {
+            return this == OPTIONAL || (this == REQUIRED) == (args != null);
+        }
+    }
+
+    private static class Entry {
+        final Arguments arguments;
+        final CommandHandler handler;
+
+        Entry(Arguments arguments, CommandHandler handler) {
+            this.arguments = arguments;
+            this.handler = handler;
+        }
+    }
+
+    CommandRegistry() {
+        this.entries = new EnumMap<>(Command.class);
+    }
+
+    public void register(Command command, Arguments arguments, CommandHandler handler) {
+        entries.put(command, new Entry(arguments, handler));
+    }
+
+    /**
+     * @return handler of the command with the arguments, null if it's incorrect
+     */
+    public CommandHandler get(Command command, String args) {
+        Entry entry = entries.get(command);
+        return entry == null || !entry.arguments.accept(args) ? null : entry.handler;
+    }
+}
@@ -0,0 +1,31 @@
+package chat.server;
+
+import chat.additional.Frame;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Outbound side of a client connection, independent of the I/O model serving it.
+ */
+interface Connection {
+    void send(Frame frame) throws IOException;
+
+    /**
+     * Frames sent after this call, and bytes received after the frame being handled, use the binary framing.
+     */
+    void useBinaryProtocol();
+
+    /**
+     * Handles no more frames until the work completes, then runs the continuation where frames are handled.
+     * Frames received in the meantime are handled after it, in order.
+     */
+    void handleAfter(CompletableFuture<?> work, Runnable continuation);
+
+    /**
+     * @return frames queued and not written yet
+     */
+    int getQueued();
+
+    void close() throws IOException;
+}
@@ -0,0 +1,52 @@
+package chat.server;
+
+import chat.additional.Frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder of frames read from a non-blocking channel.
+ * Bytes can arrive split at any position, so partial frames are kept until complete.
+ */
+abstract class FrameDecoder {
+    protected byte[] pending = new byte[256];
+    protected int start = 0; // first byte not decoded yet
+    protected int end = 0;
+
+    public void append(ByteBuffer in) {
+        if (start > 0) {
+            System.arraycopy(pending, start, pending, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+
+        int required = end + in.remaining();
+        if (required > pending.length) {
+            byte[] grown = new byte[Math.max(required, pending.length * 2)];
+            System.arraycopy(pending, 0, grown, 0, end);
+            pending = grown;
+        }
+        int len = in.remaining();
+        in.get(pending, end, len);
+        end += len;
+    }
+
+    /**
+     * @return next complete frame, or null if more bytes are needed
+     */
+    public abstract Frame next() throws IOException;
+
+    /**
+     * Passes the bytes not decoded yet to the decoder of the protocol the client switched to.
+     */
+    public FrameDecoder switchTo(FrameDecoder decoder) {
+        decoder.append(ByteBuffer.wrap(pending, start, end - start));
+        start = end = 0;
+        return decoder;
+    }
+
+    protected int available() {
+        return end - start;
+    }
+}
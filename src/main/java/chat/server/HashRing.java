@@ -0,0 +1,49 @@
+package chat.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of chat keys to the nodes of a cluster. Every node is placed at many points of the ring,
+ * a key is owned by the node of the first point at or after its hash. Keys spread evenly, and adding or removing
+ * a node moves only the keys of its points.
+ */
+class HashRing {
+    private final NavigableMap<Long, Integer> points; // node index by hash of the point
+
+    /**
+     * @param nodes names of the nodes, the same on every node; a point is placed by the name, not by the index
+     */
+    HashRing(List<String> nodes, int pointsPerNode) {
+        this.points = new TreeMap<>();
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int point = 0; point < pointsPerNode; point++) {
+                points.put(hash(nodes.get(node) + "#" + point), node);
+            }
+        }
+    }
+
+    /**
+     * @return index of the node owning the key
+     */
+    int nodeOf(String key) {
+        Map.Entry<Long, Integer> point = points.ceilingEntry(hash(key));
+        return (point == null ? points.firstEntry() : point).getValue();
+    }
+
+    /**
+     * 64-bit FNV-1a of the chars, finished with the mixer of SplitMix64 so that similar keys land far apart.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+}
@@ -0,0 +1,207 @@
+package chat.server;
+
+import chat.additional.Frame;
+import chat.additional.Settings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection served by a {@link NioServer.EventLoop}. Reads and writes happen on the loop thread only,
+ * messages sent from other threads are queued and flushed by the loop, a batch of frames per gathering write.
+ */
+class NioConnection implements Connection {
+    private static final ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
+
+    private final SocketChannel channel;
+    private final NioServer.EventLoop loop;
+    private final OutboundQueue queue;
+    private final AtomicBoolean isFlushScheduled;
+    private final List<OutboundQueue.Item> batch;
+    private FrameDecoder decoder;
+    private volatile boolean isBinary;
+    private ByteBuffer[] inFlight; // encoded batch being written
+    private int inFlightIndex;
+    private Session session;
+    private SelectionKey key;
+    private boolean isSuspended; // the loop doesn't read nor handle frames until the session's work completes
+
+    NioConnection(SocketChannel channel, NioServer.EventLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+        this.queue = new OutboundQueue(Settings.OUTBOUND_QUEUE_CAPACITY, Settings.SLOW_CONSUMER_POLICY);
+        this.isFlushScheduled = new AtomicBoolean(false);
+        this.decoder = new UtfFrameDecoder();
+        this.isBinary = false;
+        this.batch = new ArrayList<>(Settings.OUTBOUND_BATCH_SIZE);
+        this.inFlight = NO_BUFFERS;
+        this.inFlightIndex = 0;
+    }
+
+    void register(Session session) {
+        this.session = session;
+        try {
+            key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            session.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeQuietly();
+        }
+    }
+
+    void onReadable(ByteBuffer buffer) {
+        try {
+            buffer.clear();
+            if (channel.read(buffer) < 0) {
+                closeQuietly();
+                return;
+            }
+            buffer.flip();
+            decoder.append(buffer);
+            handleFrames();
+        } catch (Exception e) {
+            e.printStackTrace();
+            closeQuietly();
+        }
+    }
+
+    private void handleFrames() throws IOException {
+        // the decoder is read again for each frame, a handled frame can switch the protocol
+        Frame frame;
+        while (!isSuspended && (frame = decoder.next()) != null) {
+            if (!session.handle(frame)) {
+                flush();
+                closeQuietly();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Called on the loop thread while a frame is handled. The loop stops reading the channel
+     * and goes on with the frames decoded already once the continuation has run.
+     */
+    @Override
+    public void handleAfter(CompletableFuture<?> work, Runnable continuation) {
+        isSuspended = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        work.whenComplete((result, e) -> loop.execute(() -> resume(continuation)));
+    }
+
+    private void resume(Runnable continuation) {
+        isSuspended = false;
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            continuation.run();
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            handleFrames();
+        } catch (Exception e) {
+            e.printStackTrace();
+            closeQuietly();
+        }
+    }
+
+    private int readOps() {
+        return isSuspended ? 0 : SelectionKey.OP_READ;
+    }
+
+    void flush() {
+        if (key == null) {
+            return;
+        }
+        try {
+            while (true) {
+                if (inFlightIndex == inFlight.length && !nextBatch()) {
+                    break;
+                }
+
+                channel.write(inFlight, inFlightIndex, inFlight.length - inFlightIndex);
+                while (inFlightIndex < inFlight.length && !inFlight[inFlightIndex].hasRemaining()) {
+                    inFlightIndex++;
+                }
+                if (inFlightIndex < inFlight.length) {
+                    // socket buffer is full, continue when the channel becomes writable
+                    key.interestOps(readOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (key.isValid()) {
+                key.interestOps(readOps());
+            }
+        } catch (IOException e) {
+            closeQuietly();
+        }
+    }
+
+    private boolean nextBatch() throws IOException {
+        batch.clear();
+        queue.drainTo(batch, Settings.OUTBOUND_BATCH_SIZE);
+        if (batch.isEmpty()) {
+            return false;
+        }
+
+        inFlight = new ByteBuffer[batch.size()];
+        for (int i = 0; i < inFlight.length; i++) {
+            OutboundQueue.Item item = batch.get(i);
+            inFlight[i] = item.binary ? item.frame.encodeBinary() : item.frame.encodeUtf();
+        }
+        inFlightIndex = 0;
+        return true;
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (queue.offer(frame, isBinary) == OutboundQueue.Result.OVERFLOW) {
+            throw new SlowConsumerException();
+        }
+        if (isFlushScheduled.compareAndSet(false, true)) {
+            if (loop.inEventLoop()) {
+                loop.flushLater(this);
+            } else {
+                loop.execute(this::scheduledFlush);
+            }
+        }
+    }
+
+    void scheduledFlush() {
+        isFlushScheduled.set(false);
+        flush();
+    }
+
+    /**
+     * Called on the loop thread while a frame is handled.
+     */
+    @Override
+    public void useBinaryProtocol() {
+        isBinary = true;
+        decoder = decoder.switchTo(new BinaryFrameDecoder());
+    }
+
+    @Override
+    public int getQueued() {
+        return queue.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (key != null) {
+            key.cancel();
+        }
+        channel.close();
+    }
+
+    private void closeQuietly() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        session.close();
+    }
+}
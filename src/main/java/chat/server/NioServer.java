@@ -0,0 +1,136 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking alternative to the thread-per-connection mode: connections are spread over
+ * a fixed number of selector event loops, so the number of online users does not depend on the number of threads.
+ */
+class NioServer {
+    private final Server server;
+    private final EventLoop[] eventLoops;
+    private ServerSocketChannel serverChannel;
+
+    NioServer(Server server, int eventLoopsCount) {
+        this.server = server;
+        this.eventLoops = new EventLoop[eventLoopsCount];
+    }
+
+    public void run(InetSocketAddress address, int backlog) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, backlog);
+
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+            var thread = new Thread(eventLoops[i], "event-loop-" + i);
+            eventLoops[i].thread = thread;
+            thread.start();
+        }
+        System.out.println("Server started!");
+
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            EventLoop loop = eventLoops[next++ % eventLoops.length];
+            var connection = new NioConnection(channel, loop);
+            var session = new Session(connection, server);
+            loop.execute(() -> connection.register(session));
+        }
+    }
+
+    public int getEventLoopCount() {
+        return eventLoops.length;
+    }
+
+    public void stop() throws IOException {
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        for (EventLoop loop : eventLoops) {
+            if (loop != null) {
+                loop.thread.interrupt();
+                loop.selector.close();
+            }
+        }
+    }
+
+    static class EventLoop implements Runnable {
+        final Selector selector;
+        private final Queue<Runnable> tasks;
+        private final ByteBuffer readBuffer;
+        private final List<NioConnection> pendingFlushes; // loop thread only
+        private Thread thread;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+            this.pendingFlushes = new ArrayList<>();
+        }
+
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Flushes the connection at the end of the current iteration, so that all frames queued to it
+         * while handling the ready keys go out in one write. Loop thread only.
+         */
+        void flushLater(NioConnection connection) {
+            pendingFlushes.add(connection);
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        var connection = (NioConnection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+
+                    // by index, a flush that closes a session can schedule more
+                    for (int i = 0; i < pendingFlushes.size(); i++) {
+                        pendingFlushes.get(i).scheduledFlush();
+                    }
+                    pendingFlushes.clear();
+                } catch (Exception e) {
+                    if (selector.isOpen()) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package chat.server;
+
+import chat.additional.Frame;
+import chat.additional.SlowConsumerPolicy;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to be written to one client.
+ * Senders never block on it, a full queue is handled by the {@link SlowConsumerPolicy}.
+ * A reply is awaited by the client, so it's never dropped or merged: it may go past the capacity, up to twice it.
+ */
+class OutboundQueue {
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final Deque<Item> queue;
+    private final Lock lock;
+
+    /**
+     * Frame with the framing it goes out in, fixed when it's queued so that a protocol switch doesn't reorder it.
+     */
+    static class Item {
+        final Frame frame;
+        final boolean binary;
+
+        Item(Frame frame, boolean binary) {
+            this.frame = frame;
+            this.binary = binary;
+        }
+    }
+
+    enum Result {
+        QUEUED,
+        DROPPED,
+        OVERFLOW // the client should be disconnected
+    }
+
+    OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.queue = new ArrayDeque<>();
+        this.lock = new ReentrantLock();
+    }
+
+    public Result offer(Frame frame, boolean binary) {
+        lock.lock();
+        try {
+            if (queue.size() < capacity) {
+                queue.addLast(new Item(frame, binary));
+                return Result.QUEUED;
+            }
+
+            if (!frame.isPush()) {
+                // a client sending requests without reading the replies runs into the second limit
+                if (queue.size() < 2 * capacity) {
+                    queue.addLast(new Item(frame, binary));
+                    return Result.QUEUED;
+                }
+                return Result.OVERFLOW;
+            }
+            if (policy == SlowConsumerPolicy.DISCONNECT) {
+                return Result.OVERFLOW;
+            } else if (policy == SlowConsumerPolicy.COALESCE) {
+                Item last = queue.peekLast();
+                if (last != null && last.frame.isPush() && last.binary == binary
+                        && canCoalesce(last.frame.payload, frame.payload, binary)) {
+                    queue.pollLast();
+                    queue.addLast(new Item(Frame.text(last.frame.payload + "\n" + frame.payload), binary));
+                    return Result.QUEUED;
+                }
+            }
+            return Result.DROPPED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void drainTo(List<Item> out, int max) {
+        lock.lock();
+        try {
+            Item item;
+            while (out.size() < max && (item = queue.pollFirst()) != null) {
+                out.add(item);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private static boolean canCoalesce(String first, String second, boolean binary) {
+        // chars are at most 3 bytes in UTF-8
+        long maxLen = (long) (first.length() + 1 + second.length()) * 3;
+        return maxLen <= (binary ? Frame.MAX_BINARY_LEN : Frame.MAX_UTF_LEN);
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package chat.server;
+
+import chat.additional.Frame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Logins of the online users in order, kept by the server as users go online and offline.
+ * A page of /list is a walk of the skip list from where the last page ended, nothing is copied or sorted per call.
+ * Subscribed sessions get a message for every user going online or offline instead of polling.
+ */
+class Presence {
+    private final NavigableSet<String> online;
+    private final Set<Session> subscribers;
+
+    Presence() {
+        this.online = new ConcurrentSkipListSet<>();
+        this.subscribers = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * @return false if the user was online already, on another node of the cluster too
+     */
+    public boolean add(String login) {
+        return online.add(login);
+    }
+
+    public boolean remove(String login) {
+        return online.remove(login);
+    }
+
+    /**
+     * @param prefix of the logins, empty for all of them
+     * @param after  login the previous page ended with, null for the first page
+     * @param except login left out, the one of the user asking
+     * @return logins in order, one more than the limit if there are more
+     */
+    public List<String> page(String prefix, String after, String except, int limit) {
+        NavigableSet<String> tail = after != null && after.compareTo(prefix) >= 0
+                ? online.tailSet(after, false)
+                : online.tailSet(prefix, true);
+        List<String> page = new ArrayList<>(Math.min(limit + 1, 64));
+        for (String login : tail) {
+            if (!login.startsWith(prefix)) {
+                break;
+            }
+            if (!login.equals(except)) {
+                page.add(login);
+                if (page.size() > limit) {
+                    break;
+                }
+            }
+        }
+        return page;
+    }
+
+    public void subscribe(Session session) {
+        subscribers.add(session);
+    }
+
+    public void unsubscribe(Session session) {
+        subscribers.remove(session);
+    }
+
+    /**
+     * Pushes the change to the subscribers, except to the user who changed.
+     */
+    public void publish(String login, boolean isOnline) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        Frame frame = Frame.text("Server: " + login + (isOnline ? " is online" : " is offline"));
+        for (Session session : subscribers) {
+            if (!login.equals(session.getLogin())) {
+                session.sendToClient(frame);
+            }
+        }
+    }
+}
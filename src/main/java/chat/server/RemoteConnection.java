@@ -0,0 +1,104 @@
+package chat.server;
+
+import chat.additional.Frame;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Connection of a proxy session: frames sent to it are delivered by the cluster to the session of the client
+ * on the node the client is connected to, which writes them in the framing of the client.
+ * <p>
+ * Frames forwarded to the proxy are handled on the thread reading the node. A request waiting for work suspends
+ * its proxy only: the frames forwarded to it meanwhile are queued, the other proxies of the node go on.
+ */
+class RemoteConnection implements Connection {
+    private final Cluster cluster;
+    private final int node; // of the client
+    private final long sessionId; // of the client's session on its node
+    private final Queue<Frame> waiting; // forwarded while suspended, guarded by this
+    private Session session;
+    private boolean isSuspended; // guarded by this
+
+    private RemoteConnection(Cluster cluster, int node, long sessionId) {
+        this.cluster = cluster;
+        this.node = node;
+        this.sessionId = sessionId;
+        this.waiting = new ArrayDeque<>();
+    }
+
+    /**
+     * @return connection of a new proxy of the session of the user on the node
+     */
+    static RemoteConnection open(Cluster cluster, int node, long sessionId, Server server, String login) {
+        var connection = new RemoteConnection(cluster, node, sessionId);
+        connection.session = Session.proxy(connection, server, login);
+        return connection;
+    }
+
+    Session getSession() {
+        return session;
+    }
+
+    /**
+     * Has the proxy handle a forwarded frame after the ones forwarded before it.
+     */
+    synchronized void receive(Frame frame) {
+        if (isSuspended) {
+            waiting.add(frame);
+        } else {
+            handle(frame);
+        }
+    }
+
+    @Override
+    public void send(Frame frame) {
+        cluster.deliver(node, sessionId, frame);
+    }
+
+    @Override
+    public void useBinaryProtocol() {
+        // the framing is the one of the client's connection, proxies get chat requests only
+    }
+
+    @Override
+    public synchronized void handleAfter(CompletableFuture<?> work, Runnable continuation) {
+        // called while a frame is handled, the thread reading the node isn't blocked by the work
+        isSuspended = true;
+        work.whenCompleteAsync((result, e) -> resume(continuation));
+    }
+
+    private synchronized void resume(Runnable continuation) {
+        isSuspended = false;
+        try {
+            continuation.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        Frame frame;
+        while (!isSuspended && (frame = waiting.poll()) != null) {
+            handle(frame);
+        }
+    }
+
+    private void handle(Frame frame) {
+        try {
+            session.handle(frame);
+        } catch (IOException | RuntimeException e) {
+            // a request failing doesn't take the other sessions of the node down
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public int getQueued() {
+        return 0; // queued to the node, not per session
+    }
+
+    @Override
+    public void close() {
+        // the client's session closes the client's connection
+    }
+}
@@ -1,18 +1,32 @@
 package chat.server;
 
+import chat.additional.Frame;
+import chat.additional.Metrics;
 import chat.additional.ServerMessage;
+import chat.additional.ServerMode;
 import chat.additional.Settings;
+import chat.user.Chat;
+import chat.user.Journal;
 import chat.user.UserRepo;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static chat.additional.Role.ADMIN;
 import static chat.additional.Role.USER;
@@ -22,42 +36,216 @@ public class Server {
     private static Server server;
     private final int PORT;
     private final String HOST;
-    private final ExecutorService executorService;
+    private ExecutorService executorService;
     private final Map<String, Session> sessions;
+    private final Presence presence; // logins of the sessions in order, and of the users on the other nodes
+    private final Cluster cluster; // null for a single server
     private ServerSocket serverSocket;
+    private NioServer nioServer;
+    private final Authenticator authenticator;
+    private final ServerMetrics metrics;
+    private final AtomicInteger connectionTasks; // sessions running on the executor
 
     public static void main(String[] args) {
+        ServerMode mode = args.length > 0 ? ServerMode.valueOf(args[0].toUpperCase()) : ServerMode.BLOCKING;
         getServer();
-        server.run();
+        server.run(mode);
     }
 
     private Server(int port, String host) {
         this.PORT = port;
         this.HOST = host;
-        this.executorService = Executors.newCachedThreadPool();
         this.sessions = new ConcurrentHashMap<>();
+        this.presence = new Presence();
+        recover();
         registerUser("admin", "12345678", List.of(ADMIN.name(), USER.name())); // add hardcoded admin
+        scheduleSnapshots();
+        this.authenticator = new Authenticator(this);
+        this.connectionTasks = new AtomicInteger();
+        this.metrics = new ServerMetrics(this);
+        registerMetrics();
+        this.cluster = startCluster();
+    }
+
+    private Cluster startCluster() {
+        if (Settings.CLUSTER_NODES.isBlank()) {
+            return null;
+        }
+        var cluster = new Cluster(this, Arrays.asList(Settings.CLUSTER_NODES.split(",")), Settings.CLUSTER_NODE_ID);
+        try {
+            cluster.start();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return cluster;
+    }
+
+    /**
+     * Loads the users and the chats, both files at the same time.
+     */
+    private static void recover() {
+        var chats = new FutureTask<Void>(Chat::recover, null);
+        new Thread(chats, "chats-recovery").start();
+        UserRepo.recover();
+        try {
+            chats.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Snapshots bound the part of the db files replayed on start, the last one is taken on shutdown.
+     */
+    private static void scheduleSnapshots() {
+        long interval = Settings.SNAPSHOT_INTERVAL_SEC;
+        if (interval > 0) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                var thread = new Thread(r, "snapshots");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(Server::snapshot, interval, interval, TimeUnit.SECONDS);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            snapshot();
+            UserRepo.close();
+            Chat.close();
+        }));
+    }
+
+    /**
+     * Registers the MXBeans on a thread of its own, the platform MBean server takes a while to start.
+     */
+    private void registerMetrics() {
+        Journal users = UserRepo.getJournal();
+        Journal chats = Chat.getJournal();
+        var registration = new Thread(() -> Metrics.register(Map.of(
+                "type=Server", metrics,
+                "type=Journal,name=" + users.getPath().getFileName(), users,
+                "type=JournalAck,name=" + users.getPath().getFileName(), users.getAckLatency(),
+                "type=Journal,name=" + chats.getPath().getFileName(), chats,
+                "type=JournalAck,name=" + chats.getPath().getFileName(), chats.getAckLatency())),
+                "metrics-registration");
+        registration.setDaemon(true);
+        registration.start();
+    }
+
+    private static void snapshot() {
+        try {
+            UserRepo.snapshot();
+            Chat.snapshot();
+        } catch (RuntimeException e) {
+            // the db files have everything, the next snapshot may succeed
+            e.printStackTrace();
+        }
     }
 
     public void run() {
+        run(ServerMode.BLOCKING);
+    }
+
+    public void run(ServerMode mode) {
+        if (mode == ServerMode.NIO) {
+            runNio();
+            return;
+        }
+
+        executorService = mode == ServerMode.VIRTUAL
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
+
         try {
             serverSocket = new ServerSocket(PORT, 30, InetAddress.getByName(HOST));
             System.out.println("Server started!");
 
             while (true) {
-                executorService.submit(new Session(serverSocket.accept(), this));
+                var session = new Session(serverSocket.accept(), this);
+                executorService.submit(() -> {
+                    connectionTasks.incrementAndGet();
+                    try {
+                        session.run();
+                    } finally {
+                        connectionTasks.decrementAndGet();
+                    }
+                });
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void runNio() {
+        try {
+            nioServer = new NioServer(this, Settings.DEFAULT_EVENT_LOOPS);
+            nioServer.run(new InetSocketAddress(InetAddress.getByName(HOST), PORT), 30);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public void addSession(String login, Session session) {
-        sessions.putIfAbsent(login, session);
+        boolean[] isAdded = {false};
+        boolean[] isNewlyOnline = {false};
+        // the index changes with the map, under the lock of the login
+        sessions.computeIfAbsent(login, l -> {
+            isNewlyOnline[0] = presence.add(l);
+            isAdded[0] = true;
+            return session;
+        });
+        // pushed outside of the map, a subscriber that can't keep up is closed and removed
+        if (isAdded[0]) {
+            if (cluster != null) {
+                cluster.announce(login, true);
+            }
+            if (isNewlyOnline[0]) {
+                presence.publish(login, true);
+            }
+        }
     }
 
     public void removeSession(String login) {
-        sessions.remove(login);
+        if (login == null) {
+            return; // not identified
+        }
+        boolean[] isRemoved = {false};
+        boolean[] isOffline = {false};
+        sessions.computeIfPresent(login, (l, session) -> {
+            // still online if the user is on another node too
+            isOffline[0] = (cluster == null || !cluster.isOnlineRemotely(l)) && presence.remove(l);
+            isRemoved[0] = true;
+            return null;
+        });
+        if (isRemoved[0]) {
+            if (cluster != null) {
+                cluster.announce(login, false);
+            }
+            if (isOffline[0]) {
+                presence.publish(login, false);
+            }
+        }
+    }
+
+    /**
+     * A user went online on another node of the cluster.
+     */
+    void addRemoteLogin(String login) {
+        if (!sessions.containsKey(login) && presence.add(login)) {
+            presence.publish(login, true);
+        }
+    }
+
+    /**
+     * A user went offline on another node of the cluster, or the node is gone.
+     */
+    void removeRemoteLogin(String login) {
+        if (!sessions.containsKey(login) && presence.remove(login)) {
+            presence.publish(login, false);
+        }
     }
 
     public ServerMessage registerUser(String login, String pass, List<String> roles) {
@@ -74,24 +262,131 @@ public class Server {
                 : INCORRECT_PASSWORD;
     }
 
-    public List<String> getOnlineFriendsOfUser(String login) {
-        return sessions
-                .keySet()
-                .stream()
-                .filter(u -> !u.equals(login))
-                .sorted()
-                .collect(Collectors.toList());
+    /**
+     * Pushes the frame to every online user, on every node of the cluster.
+     *
+     * @return number of users it was sent to
+     */
+    public int broadcast(Frame frame) {
+        return broadcastLocally(frame) + (cluster == null ? 0 : cluster.broadcast(frame));
+    }
+
+    /**
+     * @return number of sessions of this node the frame was queued to
+     */
+    int broadcastLocally(Frame frame) {
+        int recipients = 0;
+        for (Session session : sessions.values()) {
+            session.sendToClient(frame);
+            recipients++;
+        }
+        return recipients;
+    }
+
+    Presence getPresence() {
+        return presence;
     }
 
+    /**
+     * @return report of the gauges, the latencies and the db files for /metrics
+     */
+    public String getMetrics() {
+        List<String> lines = new ArrayList<>();
+        lines.add(metrics.toString());
+        if (cluster != null) {
+            lines.add(cluster.toString());
+        }
+        lines.addAll(Metrics.report());
+        lines.add(UserRepo.getJournal().toString());
+        lines.add(Chat.getJournal().toString());
+        return String.join("\n", lines);
+    }
+
+    Collection<Session> getSessions() {
+        return sessions.values();
+    }
+
+    int getConnectionTasks() {
+        return connectionTasks.get();
+    }
+
+    NioServer getNioServer() {
+        return nioServer;
+    }
+
+    Authenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * @return session of the user on this node, see {@link #isOnline} for the cluster
+     */
     public Session getSession(String login) {
         return sessions.get(login);
     }
 
+    /**
+     * @return true if the user is online on this node or on another node of the cluster
+     */
+    public boolean isOnline(String login) {
+        return sessions.containsKey(login) || cluster != null && cluster.isOnlineRemotely(login);
+    }
+
+    /**
+     * @return node of the cluster owning the chat, {@link Cluster#LOCAL} for this one
+     */
+    int getOwnerOf(String chatKey) {
+        return cluster == null ? Cluster.LOCAL : cluster.ownerOf(chatKey);
+    }
+
+    Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Kicks the session of the user out, on whichever node of the cluster it is.
+     */
+    void kick(String login) {
+        Session session = sessions.get(login);
+        if (session != null) {
+            session.kicked();
+        } else if (cluster != null) {
+            cluster.kick(login);
+        }
+    }
+
+    /**
+     * Pushes the frame to the session of the user, on whichever node of the cluster it is.
+     */
+    void push(String login, Frame frame) {
+        Session session = sessions.get(login);
+        if (session != null) {
+            session.sendToClient(frame);
+        } else if (cluster != null) {
+            cluster.push(login, frame);
+        }
+    }
+
     public void stop() {
-        executorService.shutdownNow();
+        authenticator.stop();
+        if (cluster != null) {
+            cluster.stop();
+        }
+        if (executorService != null) {
+            executorService.shutdownNow();
+        }
 
         try {
-            serverSocket.close();
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            if (nioServer != null) {
+                nioServer.stop();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -103,7 +398,7 @@ public class Server {
 
     public static Server getServer() {
         if (server == null) {
-            server = new Server(Settings.DEFAULT_PORT, Settings.DEFAULT_HOST);
+            server = new Server(Settings.PORT, Settings.DEFAULT_HOST);
         }
         return server;
     }
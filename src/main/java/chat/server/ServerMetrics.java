@@ -0,0 +1,67 @@
+package chat.server;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Gauges read from the server on demand, nothing is tracked on the paths of the requests.
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+    private final Server server;
+
+    ServerMetrics(Server server) {
+        this.server = server;
+    }
+
+    @Override
+    public int getSessions() {
+        return server.getSessions().size();
+    }
+
+    @Override
+    public int getConnectionThreads() {
+        if (server.getNioServer() != null) {
+            return server.getNioServer().getEventLoopCount();
+        }
+        if (server.getExecutorService() instanceof ThreadPoolExecutor pool) {
+            return pool.getPoolSize();
+        }
+        // a virtual thread per connection
+        return server.getConnectionTasks();
+    }
+
+    @Override
+    public int getAuthThreads() {
+        return server.getAuthenticator().getThreads();
+    }
+
+    @Override
+    public int getAuthQueued() {
+        return server.getAuthenticator().getQueued();
+    }
+
+    @Override
+    public long getOutboundQueued() {
+        long queued = 0;
+        for (Session session : server.getSessions()) {
+            queued += session.getQueuedFrames();
+        }
+        return queued;
+    }
+
+    @Override
+    public int getOutboundQueuedMax() {
+        int max = 0;
+        for (Session session : server.getSessions()) {
+            max = Math.max(max, session.getQueuedFrames());
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "sessions " + getSessions()
+                + ", connection threads " + getConnectionThreads()
+                + ", auth threads " + getAuthThreads() + " (" + getAuthQueued() + " queued)"
+                + ", outbound frames queued " + getOutboundQueued() + " (max " + getOutboundQueuedMax() + " per user)";
+    }
+}
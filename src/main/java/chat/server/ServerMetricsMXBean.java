@@ -0,0 +1,30 @@
+package chat.server;
+
+/**
+ * JMX gauges of a running {@link Server}.
+ */
+public interface ServerMetricsMXBean {
+    /**
+     * @return online users
+     */
+    int getSessions();
+
+    /**
+     * @return threads serving the connections: event loops, pooled threads or virtual threads by the mode
+     */
+    int getConnectionThreads();
+
+    int getAuthThreads();
+
+    int getAuthQueued();
+
+    /**
+     * @return frames queued to the online users and not written yet
+     */
+    long getOutboundQueued();
+
+    /**
+     * @return most frames queued to one online user
+     */
+    int getOutboundQueuedMax();
+}
@@ -1,252 +1,627 @@
 package chat.server;
 
+import chat.additional.Command;
+import chat.additional.Frame;
+import chat.additional.Metrics;
 import chat.additional.ServerMessage;
+import chat.additional.Settings;
+import chat.user.Authorization;
 import chat.user.Chat;
 import chat.user.UserRepo;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.net.Socket;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static chat.additional.Command.*;
 import static chat.additional.Role.*;
 import static chat.additional.ServerMessage.*;
+import static chat.server.CommandRegistry.Arguments.*;
 
 public class Session implements Runnable {
+    private static final String UNREAD_COUNTS_ARG = "counts";
+    private static final String BINARY_PROTOCOL_ARG = "binary";
+    private static final String LIST_MORE_ARG = "more";
+    private static final String LIST_SUBSCRIBE_ARG = "subscribe";
+    private static final String LIST_UNSUBSCRIBE_ARG = "unsubscribe";
+    private static final CommandRegistry commands; // of identified users
+    private static final AtomicLong nextId = new AtomicLong();
+
+    static {
+        commands = new CommandRegistry();
+        commands.register(EXIT, NONE, (session, args) -> false);
+        commands.register(LIST, OPTIONAL, Session::list);
+        commands.register(CHAT, REQUIRED, Session::chat);
+        commands.register(ROOM, REQUIRED, Session::room);
+        commands.register(STATISTIC, NONE, Session::statistic);
+        commands.register(HISTORY, REQUIRED, Session::history);
+        commands.register(UNREAD, OPTIONAL, Session::unread);
+        commands.register(BROADCAST, REQUIRED, Session::broadcast);
+        commands.register(METRICS, NONE, Session::metrics);
+        commands.register(GRANT, REQUIRED, Session::grant);
+        commands.register(REVOKE, REQUIRED, Session::revoke);
+        commands.register(KICK, REQUIRED, Session::kick);
+    }
+
+    private final long id = nextId.incrementAndGet(); // addresses the session from other nodes of the cluster
     private final Socket socket;
     private final Server server;
-    private DataOutputStream outStream;
+    private Connection connection;
     private String login;
+    // the last page of /list ended with listAfter, /list more goes on from it
+    private String listPrefix = "";
+    private String listAfter;
     private volatile Chat currChat = null;
+    // node of the cluster owning the chat the user is in instead, the proxy session there handles the chat requests
+    private volatile int chatNode = Cluster.LOCAL;
+    // handles the requests of a session on another node, in a chat of this one
+    private boolean isProxy;
     private volatile boolean isUserIdentified = false;
+    // roles and ban of the user, replaced by UserRepo when they change
+    private volatile Authorization authorization = Authorization.NONE;
+    private final Consumer<Authorization> authorizationWatcher = authorization -> this.authorization = authorization;
+    private volatile String watchedLogin;
+    private final AtomicBoolean isClosed = new AtomicBoolean(false);
+    // request being handled, its reply goes back with the same opcode and correlation id
+    private int replyOpcode = Frame.TEXT;
+    private int replyCorrelationId = 0;
+    private Frame handledFrame;
+    private long handledAt; // start of the request being handled
+    private boolean isHandledAsync; // its latency is recorded when the work it waits for completes
 
     public Session(Socket socket, Server server) {
         this.socket = socket;
         this.server = server;
     }
 
+    Session(Connection connection, Server server) {
+        this.socket = null;
+        this.server = server;
+        this.connection = connection;
+    }
+
+    /**
+     * @return identified session of the user, which doesn't make the user online here
+     */
+    static Session proxy(Connection connection, Server server, String login) {
+        var session = new Session(connection, server);
+        session.isProxy = true;
+        session.login = login;
+        session.watchAuthorization(login);
+        session.isUserIdentified = true;
+        return session;
+    }
+
+    /**
+     * Serves a blocking socket on the current thread until the user exits or the connection is lost.
+     */
     @Override
     public void run() {
 
         try {
-            DataInputStream inStream = new DataInputStream(socket.getInputStream());
-            outStream = new DataOutputStream(socket.getOutputStream());
+            var socketConnection = new SocketConnection(socket, server.getExecutorService());
+            connection = socketConnection;
 
-            outStream.writeUTF(AUTHORIZE_OR_REGISTER.msg);
+            start();
 
             // allow user to input msgs
-            while (true) {
-                if (!isUserIdentified) {
-                    if (!authOrRegister(inStream, outStream)) {
-                        break;
-                    } else {
-                        // make user online
-                        server.addSession(login, this);
-                        isUserIdentified = true;
-                    }
-                }
-
-                String clientInput = inStream.readUTF();
-                if (UserRepo.isUserBlocked(login)) {
-                    outStream.writeUTF(NOT_IN_CHAT.msg);
-                    continue;
-                }
-
-                if (EXIT.msg.equalsIgnoreCase(clientInput)) {
-                    server.removeSession(login);
-                    if (currChat != null) {
-                        currChat.leaveChat(login);
-                    }
-                    break;
-                } else if (LIST.msg.equalsIgnoreCase(clientInput)) {
-                    var friends = server.getOnlineFriendsOfUser(login);
-                    outStream.writeUTF(friends.isEmpty() ? NO_ONE_ONLINE.msg
-                            : ONLINE.msg + String.join(" ", friends));
-                } else if (clientInput.startsWith(CHAT.msg + " ")) {
-                    String loginOfSecondUser = clientInput.substring(CHAT.msg.length() + 1);
-
-                    if (server.getSession(loginOfSecondUser) == null) {
-                        outStream.writeUTF(USER_NOT_ONLINE.msg);
-                    } else {
-                        if (currChat != null) {
-                            currChat.leaveChat(login);
-                        }
-                        currChat = Chat.getChat(Set.of(login, loginOfSecondUser));
-                        currChat.joinChat(login);
-
-                        // send 25 lest msgs to user
-                        outStream.writeUTF(String.join("\n", currChat.getLast25Msgs(login)));
-                    }
-                } else if (STATISTIC.msg.equals(clientInput)) {
-                    outStream.writeUTF(currChat == null ? LIST_COMMAND.msg : currChat.getStatistic(login));
-                } else if (clientInput.startsWith(HISTORY.msg + " ")) {
-                    if (currChat == null) {
-                        outStream.writeUTF(LIST_COMMAND.msg);
-                    } else {
-                        String fromStr = clientInput.substring(HISTORY.msg.length() + 1);
-                        int from;
-                        try {
-                            var fromBigInt = new BigInteger(fromStr);
-
-                            try {
-                                from = fromBigInt.intValueExact();
-                            } catch (ArithmeticException e) {
-                                outStream.writeUTF("Server: value should not be bigger than: " + Integer.MAX_VALUE);
-                                continue;
-                            }
-
-                            if (from < 0) {
-                                outStream.writeUTF(VAL_SHOULD_BE_POSITIVE.msg);
-                                continue;
-                            }
-                        } catch (NumberFormatException e) {
-                            outStream.writeUTF("Server: " + fromStr + " is not a number!");
-                            continue;
-                        }
-                        outStream.writeUTF("Server:\n"
-                                + String.join("\n", currChat.getNLastMsgsStartingFrom(from, 25)));
-                    }
-                } else if (UNREAD.msg.equals(clientInput)) {
-                    var users = Chat.getUsersThatSentUnreadMsgs(login);
-                    String usersStr = String.join(" ", users);
-                    outStream.writeUTF(users.size() == 0 ? NO_ONE_UNREAD.msg : "Server: unread from: " + usersStr);
-                } else if (clientInput.startsWith(GRANT.msg + " ")) {
-                    if (!UserRepo.isUserHasRole(login, ADMIN.name())) {
-                        outStream.writeUTF(NOT_ADMIN.msg);
-                    } else {
-                        String grantTo = clientInput.substring(GRANT.msg.length() + 1);
-                        ServerMessage serverMsg = UserRepo.grantRole(grantTo, MODERATOR.name());
-                        if (serverMsg == ROLE_GRANTED) {
-                            outStream.writeUTF("Server: " + grantTo + " is the new moderator!");
-                            Session session = server.getSession(grantTo);
-                            if (session != null) {
-                                session.sendMsgToClient(NEW_MODERATOR.msg);
-                            }
-                        } else if (serverMsg == ROLE_WAS_GRANTED_PREVIOUSLY) {
-                            outStream.writeUTF(ALREADY_MODERATOR.msg);
-                        } else {
-                            outStream.writeUTF(serverMsg.msg);
-                        }
-                    }
-                } else if (clientInput.startsWith(REVOKE.msg + " ")) {
-                    if (!UserRepo.isUserHasRole(login, ADMIN.name())) {
-                        outStream.writeUTF(NOT_ADMIN.msg);
-                    } else {
-                        String revokeFrom = clientInput.substring(REVOKE.msg.length() + 1);
-                        ServerMessage serverMsg = UserRepo.removeRole(revokeFrom, MODERATOR.name());
-                        if (serverMsg == ROLE_REMOVED) {
-                            outStream.writeUTF("Server: " + revokeFrom + " is no longer a moderator!");
-                            Session session = server.getSession(revokeFrom);
-                            if (session != null) {
-                                session.sendMsgToClient(NO_LONGER_MODERATOR.msg);
-                            }
-                        } else if (serverMsg == NO_ROLE) {
-                            outStream.writeUTF(NOT_MODERATOR.msg);
-                        } else {
-                            outStream.writeUTF(serverMsg.msg);
-                        }
-                    }
-                } else if (clientInput.startsWith(KICK.msg + " ")) {
-                    String kick = clientInput.substring(KICK.msg.length() + 1);
-
-                    if (!(UserRepo.isUserHasRole(login, ADMIN.name()) || UserRepo.isUserHasRole(login, MODERATOR.name()))) {
-                        outStream.writeUTF(NOT_MODERATOR_OR_ADMIN.msg);
-                    } else if (kick.equals(login)) {
-                        outStream.writeUTF(CANT_KICK_YOURSELF.msg);
-                    } else if (UserRepo.isUserHasRole(login, MODERATOR.name()) && UserRepo.isUserHasRole(kick, MODERATOR.name())) {
-                        outStream.writeUTF(CANT_KICK_MODERATOR.msg);
-                    } else if (UserRepo.isUserHasRole(kick, ADMIN.name())) {
-                        outStream.writeUTF(CANT_KICK_ADMIN.msg);
-                    } else {
-                        if (!UserRepo.isUserLoginExists(kick)) {
-                            outStream.writeUTF(INCORRECT_LOGIN.msg);
-                        } else {
-                            Session session = server.getSession(kick);
-                            if (session == null) {
-                                outStream.writeUTF(USER_NOT_ONLINE.msg);
-                            } else {
-                                UserRepo.setBlocked(kick, LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) + 25);
-                                session.isUserIdentified = false;
-                                outStream.writeUTF("Server: " + kick + " was kicked!");
-                                session.sendMsgToClient(KICKED.msg);
-                                server.removeSession(kick);
-                                if (currChat != null) {
-                                    session.currChat.leaveChat(kick);
-                                    session.currChat = null;
-                                }
-                            }
-                        }
-                    }
-                } else if (clientInput.startsWith("/")) {
-                    outStream.writeUTF(INCORRECT_COMMAND.msg);
-                } else {
-                    if (currChat == null) {
-                        outStream.writeUTF(LIST_COMMAND.msg);
-                    } else {
-                        currChat.sendMessage(login, clientInput);
-                    }
-                }
-            }
+            while (handle(socketConnection.read())) ;
 
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            close();
+        }
+    }
+
+    void start() throws IOException {
+        reply(AUTHORIZE_OR_REGISTER.msg);
+    }
+
+    /**
+     * Processes one frame received from the client.
+     *
+     * @return false if the session should be closed
+     */
+    boolean handle(Frame frame) throws IOException {
+        replyOpcode = frame.opcode;
+        replyCorrelationId = frame.correlationId;
+        handledFrame = frame;
+        handledAt = System.nanoTime();
+
+        // the opcode of a binary request is its command, a text line is tokenized
+        Command command;
+        String args;
+        if (frame.opcode == Frame.TEXT) {
+            command = Command.of(frame.payload);
+            args = command == null ? frame.payload : Command.argsOf(frame.payload, command);
+        } else {
+            command = Command.byOpcode(frame.opcode);
+            if (command == null) {
+                // a plain text is a text frame, an unknown opcode isn't posted to the chat
+                reply(INCORRECT_COMMAND.msg);
+                return true;
+            }
+            args = frame.payload.isEmpty() ? null : frame.payload;
+        }
+
+        boolean isOpen = handle(command, args);
+        if (isHandledAsync) {
+            isHandledAsync = false;
+        } else {
+            Metrics.of(command).record(System.nanoTime() - handledAt);
+        }
+        return isOpen;
+    }
+
+    /**
+     * @param command null for a plain text
+     * @param args arguments of the command or the text, null if the command has none
+     */
+    private boolean handle(Command command, String args) throws IOException {
+        if (command == PROTOCOL && BINARY_PROTOCOL_ARG.equals(args)) {
+            // the confirmation is the last frame in the old framing
+            reply(BINARY_PROTOCOL.msg);
+            connection.useBinaryProtocol();
+            return true;
+        }
+
+        if (!isUserIdentified) {
+            return authOrRegister(command, args);
+        }
+
+        if (authorization.isBlocked()) {
+            reply(NOT_IN_CHAT.msg);
+            return true;
+        }
+
+        if (chatNode != Cluster.LOCAL && isChatRequest(command, args)) {
+            forward();
+            return true;
+        }
+
+        if (command == null) {
+            if (args.startsWith("/")) {
+                reply(INCORRECT_COMMAND.msg);
+            } else if (currChat == null) {
+                reply(LIST_COMMAND.msg);
+            } else {
+                Chat chat = currChat;
+                finishAfter(chat.sendMessage(login, args), null, chat::deliver);
+            }
+            return true;
+        }
+
+        CommandHandler handler = commands.get(command, args);
+        if (handler == null) {
+            reply(INCORRECT_COMMAND.msg);
+            return true;
+        }
+        return handler.handle(this, args);
+    }
+
+    /**
+     * @return true for a request to the current chat: a message, /stats or /history
+     */
+    private static boolean isChatRequest(Command command, String args) {
+        return command == null ? !args.startsWith("/") : command == STATISTIC || command == HISTORY;
+    }
+
+    /**
+     * Online users in pages: /list, /list prefix, /list more. /list subscribe and unsubscribe turn presence messages on and off.
+     */
+    private boolean list(String args) throws IOException {
+        Presence presence = server.getPresence();
+        if (LIST_SUBSCRIBE_ARG.equals(args)) {
+            presence.subscribe(this);
+            reply(PRESENCE_SUBSCRIBED.msg);
+            return true;
+        } else if (LIST_UNSUBSCRIBE_ARG.equals(args)) {
+            presence.unsubscribe(this);
+            reply(PRESENCE_UNSUBSCRIBED.msg);
+            return true;
+        } else if (args != null && args.indexOf(' ') >= 0) {
+            reply(INCORRECT_COMMAND.msg);
+            return true;
+        }
+
+        if (!LIST_MORE_ARG.equals(args)) {
+            listPrefix = args == null ? "" : args;
+            listAfter = null;
+        }
+        int pageSize = Settings.LIST_PAGE_SIZE;
+        List<String> friends = presence.page(listPrefix, listAfter, login, pageSize);
+        boolean hasMore = friends.size() > pageSize;
+        if (hasMore) {
+            friends = friends.subList(0, pageSize);
+        }
+        listAfter = friends.isEmpty() ? null : friends.get(friends.size() - 1);
+        reply(friends.isEmpty() ? NO_ONE_ONLINE.msg
+                : ONLINE.msg + String.join(" ", friends) + (hasMore ? "\n" + LIST_MORE.msg : ""));
+        return true;
+    }
+
+    private boolean chat(String loginOfSecondUser) throws IOException {
+        if (!server.isOnline(loginOfSecondUser)) {
+            reply(USER_NOT_ONLINE.msg);
+        } else {
+            Set<String> users = Set.of(login, loginOfSecondUser);
+            enterChat(Chat.keyOf(users), CHAT, () -> CompletableFuture.completedFuture(Chat.getChat(users)));
+        }
+        return true;
+    }
+
+    private boolean room(String roomName) throws IOException {
+        if (!Chat.isValidRoomName(roomName)) {
+            reply(INCORRECT_ROOM_NAME.msg);
+        } else {
+            enterChat(Chat.roomKeyOf(roomName), ROOM, () -> {
+                Chat room = Chat.getRoom(roomName);
+                return room.addMember(login).thenApply(isAdded -> room);
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Opens the chat if this node owns it, otherwise forwards the request to the node that does.
+     */
+    private void enterChat(String key, Command command, Supplier<CompletableFuture<Chat>> chat) throws IOException {
+        int owner = isProxy ? Cluster.LOCAL : server.getOwnerOf(key);
+        if (owner == Cluster.LOCAL) {
+            leaveRemoteChat();
+            CompletableFuture<Chat> opened = chat.get();
+            finishAfter(opened, command, () -> {
+                if (!isClosed.get()) {
+                    openChat(opened.join());
+                }
+            });
+            return;
+        }
+
+        if (currChat != null) {
+            currChat.leaveChat(this);
+            currChat = null;
+        }
+        if (owner != chatNode) {
+            leaveRemoteChat();
+            chatNode = owner;
+        }
+        forward();
+    }
+
+    /**
+     * Has the proxy session on the node owning the current chat handle the request being handled.
+     */
+    private void forward() throws IOException {
+        if (!server.getCluster().forward(chatNode, this, handledFrame)) {
+            reply(CHAT_UNAVAILABLE.msg);
+        }
+    }
+
+    private void leaveRemoteChat() {
+        if (chatNode != Cluster.LOCAL) {
+            server.getCluster().closeProxy(chatNode, this);
+            chatNode = Cluster.LOCAL;
+        }
+    }
+
+    private boolean statistic(String args) throws IOException {
+        reply(currChat == null ? LIST_COMMAND.msg : currChat.getStatistic(login));
+        return true;
+    }
+
+    private boolean history(String fromStr) throws IOException {
+        if (currChat == null) {
+            reply(LIST_COMMAND.msg);
+            return true;
+        }
+        int from;
+        try {
+            var fromBigInt = new BigInteger(fromStr);
+
             try {
+                from = fromBigInt.intValueExact();
+            } catch (ArithmeticException e) {
+                reply("Server: value should not be bigger than: " + Integer.MAX_VALUE);
+                return true;
+            }
+
+            if (from < 0) {
+                reply(VAL_SHOULD_BE_POSITIVE.msg);
+                return true;
+            }
+        } catch (NumberFormatException e) {
+            reply("Server: " + fromStr + " is not a number!");
+            return true;
+        }
+        reply("Server:\n"
+                + String.join("\n", currChat.getNLastMsgsStartingFrom(from, 25)));
+        return true;
+    }
+
+    private boolean unread(String args) throws IOException {
+        if (args == null) {
+            var users = Chat.getUsersThatSentUnreadMsgs(login);
+            String usersStr = String.join(" ", users);
+            reply(users.size() == 0 ? NO_ONE_UNREAD.msg : "Server: unread from: " + usersStr);
+        } else if (UNREAD_COUNTS_ARG.equals(args)) {
+            var counts = Chat.getUnreadCounts(login);
+            String countsStr = counts
+                    .entrySet()
+                    .stream()
+                    .map(e -> e.getKey() + " (" + e.getValue() + ")")
+                    .collect(Collectors.joining(" "));
+            reply(counts.isEmpty() ? NO_ONE_UNREAD.msg : "Server: unread from: " + countsStr);
+        } else {
+            reply(INCORRECT_COMMAND.msg);
+        }
+        return true;
+    }
+
+    private boolean broadcast(String text) throws IOException {
+        if (!authorization.hasRole(ADMIN)) {
+            reply(NOT_ADMIN.msg);
+        } else {
+            int recipients = server.broadcast(Frame.text("Server: broadcast from " + login + ": " + text));
+            reply("Server: broadcast sent to " + recipients + " users");
+        }
+        return true;
+    }
+
+    private boolean metrics(String args) throws IOException {
+        if (!authorization.hasRole(ADMIN)) {
+            reply(NOT_ADMIN.msg);
+        } else {
+            reply("Server: metrics\n" + server.getMetrics());
+        }
+        return true;
+    }
+
+    private boolean grant(String grantTo) throws IOException {
+        if (!authorization.hasRole(ADMIN)) {
+            reply(NOT_ADMIN.msg);
+            return true;
+        }
+        CompletableFuture<ServerMessage> result = UserRepo.grantRole(grantTo, MODERATOR.name());
+        finishAfter(result, GRANT, () -> {
+            ServerMessage serverMsg = result.join();
+            if (serverMsg == ROLE_GRANTED) {
+                reply("Server: " + grantTo + " is the new moderator!");
+                server.push(grantTo, Frame.text(NEW_MODERATOR.msg));
+            } else if (serverMsg == ROLE_WAS_GRANTED_PREVIOUSLY) {
+                reply(ALREADY_MODERATOR.msg);
+            } else {
+                reply(serverMsg.msg);
+            }
+        });
+        return true;
+    }
+
+    private boolean revoke(String revokeFrom) throws IOException {
+        if (!authorization.hasRole(ADMIN)) {
+            reply(NOT_ADMIN.msg);
+            return true;
+        }
+        CompletableFuture<ServerMessage> result = UserRepo.removeRole(revokeFrom, MODERATOR.name());
+        finishAfter(result, REVOKE, () -> {
+            ServerMessage serverMsg = result.join();
+            if (serverMsg == ROLE_REMOVED) {
+                reply("Server: " + revokeFrom + " is no longer a moderator!");
+                server.push(revokeFrom, Frame.text(NO_LONGER_MODERATOR.msg));
+            } else if (serverMsg == NO_ROLE) {
+                reply(NOT_MODERATOR.msg);
+            } else {
+                reply(serverMsg.msg);
+            }
+        });
+        return true;
+    }
+
+    private boolean kick(String kick) throws IOException {
+        Authorization kicked = UserRepo.getAuthorization(kick);
+        if (!(authorization.hasRole(ADMIN) || authorization.hasRole(MODERATOR))) {
+            reply(NOT_MODERATOR_OR_ADMIN.msg);
+        } else if (kick.equals(login)) {
+            reply(CANT_KICK_YOURSELF.msg);
+        } else if (kicked == null) {
+            reply(INCORRECT_LOGIN.msg);
+        } else if (authorization.hasRole(MODERATOR) && kicked.hasRole(MODERATOR)) {
+            reply(CANT_KICK_MODERATOR.msg);
+        } else if (kicked.hasRole(ADMIN)) {
+            reply(CANT_KICK_ADMIN.msg);
+        } else if (!server.isOnline(kick)) {
+            reply(USER_NOT_ONLINE.msg);
+        } else {
+            // the ban is replicated before the kick reaches another node
+            CompletableFuture<Void> ban = UserRepo.setBlocked(kick, UserRepo.now() + 25);
+            finishAfter(ban, KICK, () -> {
+                reply("Server: " + kick + " was kicked!");
+                server.kick(kick);
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Makes the user offline, the connection stays open for /auth.
+     */
+    void kicked() {
+        isUserIdentified = false;
+        sendMsgToClient(KICKED.msg);
+        server.getPresence().unsubscribe(this);
+        server.removeSession(login);
+        leaveRemoteChat();
+        if (currChat != null) {
+            currChat.leaveChat(this);
+            currChat = null;
+        }
+    }
+
+    void close() {
+        if (!isClosed.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            if (watchedLogin != null) {
+                UserRepo.unwatch(watchedLogin, authorizationWatcher);
+            }
+            if (!isProxy) {
+                server.getPresence().unsubscribe(this);
                 server.removeSession(login);
-                if (currChat != null) {
-                    currChat.leaveChat(login);
-                }
-                socket.close();
-            } catch (Exception e) {
-                e.printStackTrace();
             }
+            leaveRemoteChat();
+            if (currChat != null) {
+                currChat.leaveChat(this);
+            }
+            connection.close();
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
-    private boolean authOrRegister(DataInputStream inStream, DataOutputStream outStream) throws IOException {
+    private void openChat(Chat chat) throws IOException {
+        if (currChat != null) {
+            currChat.leaveChat(this);
+        }
+        currChat = chat;
+        currChat.joinChat(this);
+
+        // send 25 lest msgs to user
+        reply(String.join("\n", currChat.getLast25Msgs(login)));
+    }
 
-        while (true) {
-            String clientInput = inStream.readUTF();
-            String[] cmdLoginPass = clientInput.split(" ");
+    private boolean authOrRegister(Command command, String args) throws IOException {
+        if (command == EXIT && args == null) {
+            return false;
+        } else if ((command == REGISTRATION || command == AUTH) && args != null && isLoginAndPass(args)) {
+            if (UserRepo.isUserBlocked(login)) {
+                reply(BANNED.msg);
+            } else {
+                int space = args.indexOf(' ');
+                login = args.substring(0, space);
+                String password = args.substring(space + 1);
+                boolean isRegistration = command == REGISTRATION;
 
-            if (EXIT.msg.equalsIgnoreCase(clientInput)) {
-                return false;
-            } else if (cmdLoginPass.length == 3 && (cmdLoginPass[0].equals(REGISTRATION.msg) || cmdLoginPass[0].equals(AUTH.msg))) {
-                if (UserRepo.isUserBlocked(login)) {
-                    outStream.writeUTF(BANNED.msg);
+                ServerMessage cached = isRegistration ? null : server.getAuthenticator().authenticateCached(login, password);
+                if (cached != null) {
+                    identify(cached);
+                    return true;
+                }
+                CompletableFuture<ServerMessage> result = server.getAuthenticator().submit(isRegistration, login, password);
+                if (result == null) {
+                    reply(SERVER_BUSY.msg);
                 } else {
-                    login = cmdLoginPass[1];
-                    String password = cmdLoginPass[2];
-
-                    if (cmdLoginPass[0].equals(REGISTRATION.msg)) {
-                        ServerMessage serverMsg = server.registerUser(login, password, List.of(USER.name()));
-                        outStream.writeUTF(serverMsg.msg);
-                        if (serverMsg == REGISTERED_SUCCESSFULLY) {
-                            return true;
-                        }
-                    } else {
-                        ServerMessage serverMsg = server.authenticateUser(login, password);
-                        outStream.writeUTF(serverMsg.msg);
-                        if (serverMsg == AUTHORIZED_SUCCESSFULLY) {
-                            return true;
-                        }
-                    }
+                    finishAfter(result, command, () -> identify(result.join()));
                 }
-            } else {
-                outStream.writeUTF(NOT_IN_CHAT.msg);
             }
+        } else {
+            reply(NOT_IN_CHAT.msg);
         }
+        return true;
+    }
+
+    /**
+     * Finishes the request being handled once the work completes, without blocking the thread that handles frames:
+     * the connection handles the next frames of the session after the continuation, which records the latency.
+     * Work completed already is finished right away.
+     */
+    private void finishAfter(CompletableFuture<?> work, Command command, Continuation continuation) throws IOException {
+        if (work.isDone()) {
+            continuation.run();
+            return;
+        }
+        long startedAt = handledAt;
+        isHandledAsync = true;
+        connection.handleAfter(work, () -> {
+            try {
+                continuation.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Metrics.of(command).record(System.nanoTime() - startedAt);
+        });
+    }
+
+    @FunctionalInterface
+    private interface Continuation {
+        void run() throws IOException;
+    }
+
+    /**
+     * @return true if the arguments are a login and a password separated by a space
+     */
+    private static boolean isLoginAndPass(String args) {
+        int space = args.indexOf(' ');
+        return space > 0 && space < args.length() - 1 && args.indexOf(' ', space + 1) < 0;
+    }
+
+    /**
+     * Replies with the result of /auth or /registration and makes the user online if it succeeded.
+     */
+    private void identify(ServerMessage serverMsg) {
+        if (isClosed.get()) {
+            return;
+        }
+        try {
+            reply(serverMsg.msg);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (serverMsg == REGISTERED_SUCCESSFULLY || serverMsg == AUTHORIZED_SUCCESSFULLY) {
+            watchAuthorization(login);
+            // make user online
+            server.addSession(login, this);
+            isUserIdentified = true;
+        }
+    }
+
+    private void watchAuthorization(String login) {
+        if (watchedLogin != null) {
+            UserRepo.unwatch(watchedLogin, authorizationWatcher);
+        }
+        watchedLogin = login;
+        UserRepo.watch(login, authorizationWatcher);
+    }
+
+    private void reply(String msg) throws IOException {
+        connection.send(Frame.reply(replyOpcode, replyCorrelationId, msg));
+    }
+
+    int getQueuedFrames() {
+        return connection.getQueued();
+    }
+
+    long getId() {
+        return id;
+    }
+
+    public String getLogin() {
+        return login;
     }
 
     public void sendMsgToClient(String msg) {
+        sendToClient(Frame.text(msg));
+    }
+
+    /**
+     * Queues a pushed frame. The same frame can be sent to many sessions, it's encoded only once.
+     */
+    public void sendToClient(Frame frame) {
         try {
-            outStream.writeUTF(msg);
+            connection.send(frame);
+        } catch (SlowConsumerException e) {
+            close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,14 @@
+package chat.server;
+
+import java.io.IOException;
+
+/**
+ * The outbound queue of the client is full and the policy is to disconnect it.
+ */
+class SlowConsumerException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    SlowConsumerException() {
+        super("outbound queue is full");
+    }
+}
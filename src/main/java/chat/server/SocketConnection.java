@@ -0,0 +1,117 @@
+package chat.server;
+
+import chat.additional.Frame;
+import chat.additional.Settings;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Blocking socket connection. Messages are queued and written by a writer task in batches,
+ * several frames per flush, so that a sender never waits for the client to read.
+ */
+class SocketConnection implements Connection {
+    private final Socket socket;
+    private final DataInputStream inStream;
+    private final DataOutputStream outStream;
+    private final OutboundQueue queue;
+    private final Executor writerExecutor;
+    private final AtomicBoolean isWriterScheduled;
+    private volatile boolean isBinary;
+
+    SocketConnection(Socket socket, Executor writerExecutor) throws IOException {
+        this.socket = socket;
+        this.inStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.outStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        this.queue = new OutboundQueue(Settings.OUTBOUND_QUEUE_CAPACITY, Settings.SLOW_CONSUMER_POLICY);
+        this.writerExecutor = writerExecutor;
+        this.isWriterScheduled = new AtomicBoolean(false);
+        this.isBinary = false;
+    }
+
+    /**
+     * Blocks until the next frame is received.
+     */
+    Frame read() throws IOException {
+        return isBinary ? Frame.readBinary(inStream) : Frame.text(inStream.readUTF());
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (queue.offer(frame, isBinary) == OutboundQueue.Result.OVERFLOW) {
+            throw new SlowConsumerException();
+        }
+        if (isWriterScheduled.compareAndSet(false, true)) {
+            writerExecutor.execute(this::write);
+        }
+    }
+
+    @Override
+    public void useBinaryProtocol() {
+        isBinary = true;
+    }
+
+    /**
+     * The thread of the connection waits, it reads nothing else meanwhile.
+     */
+    @Override
+    public void handleAfter(CompletableFuture<?> work, Runnable continuation) {
+        work.join();
+        continuation.run();
+    }
+
+    @Override
+    public int getQueued() {
+        return queue.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Only one writer runs at a time, the one that set {@link #isWriterScheduled}.
+     */
+    private void write() {
+        List<OutboundQueue.Item> batch = new ArrayList<>(Settings.OUTBOUND_BATCH_SIZE);
+        try {
+            while (true) {
+                queue.drainTo(batch, Settings.OUTBOUND_BATCH_SIZE);
+                if (batch.isEmpty()) {
+                    isWriterScheduled.set(false);
+                    // a message could have been queued before the flag was cleared
+                    if (queue.isEmpty() || !isWriterScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                for (OutboundQueue.Item item : batch) {
+                    if (item.binary) {
+                        item.frame.writeBinary(outStream);
+                    } else {
+                        item.frame.writeUtf(outStream);
+                    }
+                }
+                outStream.flush();
+                batch.clear();
+            }
+        } catch (IOException e) {
+            // the reading side notices the closed socket and ends the session
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package chat.server;
+
+import chat.additional.Frame;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Decoder of the {@link DataOutputStream#writeUTF} framing:
+ * an unsigned 16-bit length followed by that many bytes of modified UTF-8.
+ */
+class UtfFrameDecoder extends FrameDecoder {
+    private static final int HEADER_LEN = 2;
+
+    @Override
+    public Frame next() throws IOException {
+        if (available() < HEADER_LEN) {
+            return null;
+        }
+        int frameLen = ((pending[start] & 0xFF) << 8) | (pending[start + 1] & 0xFF);
+        if (available() < HEADER_LEN + frameLen) {
+            return null;
+        }
+
+        String msg = DataInputStream.readUTF(new DataInputStream(
+                new ByteArrayInputStream(pending, start, HEADER_LEN + frameLen)));
+        start += HEADER_LEN + frameLen;
+        return Frame.text(msg);
+    }
+}
@@ -0,0 +1,39 @@
+package chat.user;
+
+import chat.additional.Role;
+
+import java.util.Set;
+
+/**
+ * Immutable view of what a user may do: the roles and the ban, as of when it was taken.
+ * Sessions hold the one of their user, {@link UserRepo#watch} replaces it on every change and when a ban expires.
+ */
+public class Authorization {
+    public static final Authorization NONE = new Authorization(Set.of(), 0, false);
+
+    private final Set<String> roles;
+    private final long blockedUntil; // epoch seconds of UserRepo#now
+    private final boolean isBlocked;
+
+    private Authorization(Set<String> roles, long blockedUntil, boolean isBlocked) {
+        this.roles = roles;
+        this.blockedUntil = blockedUntil;
+        this.isBlocked = isBlocked;
+    }
+
+    static Authorization of(User user, long now) {
+        return new Authorization(Set.copyOf(user.getRoles()), user.getBlockedUntil(), user.getBlockedUntil() > now);
+    }
+
+    public boolean hasRole(Role role) {
+        return roles.contains(role.name());
+    }
+
+    public boolean isBlocked() {
+        return isBlocked;
+    }
+
+    public long getBlockedUntil() {
+        return blockedUntil;
+    }
+}
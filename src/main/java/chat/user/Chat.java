@@ -1,228 +1,991 @@
 package chat.user;
 
-import chat.server.Server;
-import com.google.gson.Gson;
+import chat.additional.Durability;
+import chat.additional.Frame;
+import chat.additional.Metrics;
+import chat.additional.Settings;
+import chat.server.Session;
+import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
 
-import java.io.FileWriter;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.lang.reflect.Type;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
+/**
+ * Conversation of two users, or a named room any number of users can join.
+ * <p>
+ * Only the recent tail of the history is kept in memory, older messages are read from the log when asked for.
+ * Membership, read watermarks and statistics always stay in memory, so dropping the tail of an idle chat
+ * doesn't change what users see as unread.
+ */
 public class Chat {
-    private static final List<Chat> chats;
+    private static final String ROOM_KEY_PREFIX = "#";
+    private static final int MESSAGE_OVERHEAD = 64; // estimated bytes of a message besides its text
+    private static final Map<String, Chat> chats; // by key
+    private static final Map<String, Set<Chat>> chatsByUser; // by login
+    private static final Map<String, Set<Chat>> chatsWithUnread; // by login of the user who hasn't read them
+    private static final AtomicInteger nextId;
+    private static final LongAdder tailBytesOfAllChats; // added to by every message, striped
+    private static final Executor fanOutExecutor; // delivers the messages acknowledged by the journal writer
+    private static final ExecutorService evictor; // drops tails of idle chats, a pass at a time
+    private static final AtomicBoolean isEvicting;
+    private static volatile long evictAbove; // bytes of the tails that start the next pass
     private static final String dbPath;
-    private static final Server server;
+    private static final Path indexDir; // offset index file of each chat, by id
+    private static final Path snapshotPath;
+    private static ChatLog log; // opened by recover
     private static Gson gson;
 
     static {
-        server = Server.getServer();
         dbPath = "chatsDb.txt";
-        gson = new Gson();
-        if (Files.exists(Path.of(dbPath))) {
-            chats = deserialize(dbPath, gson);
-        } else {
-            chats = new CopyOnWriteArrayList<>();
+        indexDir = Path.of("chatsDb.idx");
+        snapshotPath = Path.of("chatsDb.snapshot");
+        gson = new GsonBuilder()
+                .registerTypeHierarchyAdapter(Map.Entry.class, new MessageAdapter())
+                .create();
+        chats = new ConcurrentHashMap<>();
+        chatsByUser = new ConcurrentHashMap<>();
+        chatsWithUnread = new ConcurrentHashMap<>();
+        nextId = new AtomicInteger();
+        tailBytesOfAllChats = new LongAdder();
+        fanOutExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            var thread = new Thread(r, "fan-out");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor = Executors.newSingleThreadExecutor(r -> {
+            var thread = new Thread(r, "history-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        isEvicting = new AtomicBoolean(false);
+        evictAbove = Settings.HISTORY_MEMORY_BUDGET;
+    }
+
+    /**
+     * Loads the chats: the snapshot, its chats decoded in parallel, then the log records written after it.
+     * Called before use, it isn't done by class loading, and again after {@link #close} to load the files anew.
+     */
+    public static void recover() {
+        chats.clear();
+        chatsByUser.clear();
+        chatsWithUnread.clear();
+        nextId.set(0);
+        tailBytesOfAllChats.reset();
+        evictAbove = Settings.HISTORY_MEMORY_BUDGET;
+        // before the log is opened, it takes the length of the file
+        if (Files.exists(Path.of(dbPath)) && isLegacyDb(dbPath)) {
+            migrateToLog(dbPath, gson);
+            Snapshot.delete(snapshotPath);
+        }
+        if (!Files.exists(Path.of(dbPath))) {
+            // indexes and snapshot of a log that is gone
+            deleteIndexes();
+            Snapshot.delete(snapshotPath);
         }
+        log = new ChatLog(Path.of(dbPath), gson, Settings.DURABILITY);
+
+        Map<Integer, Chat> chatsById = new ConcurrentHashMap<>();
+        Map<String, Long> replayFrom = new ConcurrentHashMap<>(); // by key: offset of the first record not in the snapshot
+        long from = loadSnapshot(chatsById, replayFrom);
+        replay(log, from, chatsById, replayFrom);
     }
 
-    private final Set<String> users; // logins
-    private final Set<String> usersCurrInChat; // logins
-    private final List<Map.Entry<String, Set<String>>> messages;
+    /**
+     * Writes the state of the chats to the snapshot, each chat under its lock with the offset it's current up to.
+     * Messages stay in the log, it's what their history is read from.
+     */
+    public static void snapshot() {
+        Journal journal = log.getJournal();
+        long from = journal.end();
+        List<String> lines = chats
+                .values()
+                .parallelStream()
+                .map(Chat::takeSnapshot)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        // the snapshot may hold records appended while it was taken, they have to be in the log too
+        long length = journal.end();
+        journal.awaitWritten(length - 1);
+        Snapshot.write(snapshotPath, new Snapshot.Header(from, length), lines);
+    }
+
+    public static void close() {
+        try {
+            log.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-    private Chat(Set<String> users) {
-        this.users = Collections.unmodifiableSet(users);
-        this.usersCurrInChat = new CopyOnWriteArraySet<>();
-        this.messages = new CopyOnWriteArrayList<>();
+    public static Journal getJournal() {
+        return log.getJournal();
     }
 
-    private Chat(Set<String> users, List<Map.Entry<String, Set<String>>> messages) {
-        this.users = Collections.unmodifiableSet(users);
-        this.usersCurrInChat = new CopyOnWriteArraySet<>();
-        this.messages = messages;
+    /**
+     * @return estimated bytes of the tails of all the chats
+     */
+    static long getTailBytes() {
+        return tailBytesOfAllChats.sum();
+    }
+
+    private final String key;
+    private final String room; // null for a chat of two users
+    // logins, senders of messages are indexes in it: sorted for a chat of two users, in order of joining for a room
+    private final List<String> members;
+    private final Map<String, Integer> memberIndex; // by login
+    private final Map<String, Session> subscribers; // by login: sessions that have the chat open
+    private final Deque<Message> tail; // the last messages, size - tail.size() is the index of the first one; guarded by lock
+    private final Map<String, Integer> readUpTo; // by login: number of messages the user has read
+    private final Set<String> caughtUp; // members without unread messages, guarded by lock
+    private final ChatStats stats;
+    private final Lock lock;
+    private final Queue<Delivery> fanOut; // messages not delivered to the subscribers yet, in order of the history
+    private final AtomicBoolean isDelivering;
+    private volatile int size; // number of messages, for readers outside of the lock
+    private volatile long tailBytes; // estimated, written under the lock
+    private volatile long lastAccess; // nanoTime, for picking the least recently used chats
+    private int id = -1; // assigned when the chat is written to the log for the first time
+    private ChatIndex index; // null until the chat has an id, guarded by lock
+
+    private Chat(String key, String room, Collection<String> members) {
+        this.key = key;
+        this.room = room;
+        this.members = new CopyOnWriteArrayList<>();
+        this.memberIndex = new ConcurrentHashMap<>();
+        this.subscribers = new ConcurrentHashMap<>();
+        this.tail = new ArrayDeque<>();
+        this.readUpTo = new ConcurrentHashMap<>();
+        this.caughtUp = new HashSet<>();
+        this.stats = new ChatStats();
+        this.lock = new ReentrantLock();
+        this.fanOut = new ConcurrentLinkedQueue<>();
+        this.isDelivering = new AtomicBoolean(false);
+        members.forEach(this::putMember);
     }
 
     public static Chat getChat(Set<String> users) {
-        Optional<Chat> chat = chats
-                .stream()
-                .filter(c -> c.users.equals(users))
-                .findFirst();
+        String key = keyOf(users);
+        Chat chat = chats.get(key);
+        if (chat != null) {
+            return chat;
+        }
 
-        if (chat.isPresent()) {
-            return chat.get();
-        } else {
-            Chat newChat = new Chat(users);
-            chats.add(newChat);
-            return newChat;
+        // created exactly once even if both users open the chat at the same time
+        Chat created = chats.computeIfAbsent(key, k -> new Chat(k, null, users.stream().sorted().collect(Collectors.toList())));
+        created.members.forEach(u -> indexByUser(u, created));
+        return created;
+    }
+
+    /**
+     * Room with the name, created without members if it doesn't exist.
+     */
+    public static Chat getRoom(String name) {
+        if (!isValidRoomName(name)) {
+            throw new IllegalArgumentException("Incorrect room name: " + name);
         }
+        return chats.computeIfAbsent(roomKeyOf(name), k -> new Chat(k, name, List.of()));
     }
 
-    public synchronized List<String> getLast25Msgs(String currUser) {
-        var raw25Msgs = messages
-                .subList(messages.size() < 25 ? 0 : messages.size() - 25, messages.size());
+    public static boolean isValidRoomName(String name) {
+        return !name.isEmpty() && name.chars().noneMatch(Character::isWhitespace);
+    }
 
-        long numOfViewedMsgs = raw25Msgs
-                .stream()
-                .filter(m -> !m.getValue().contains(currUser))
-                .count();
-        while (numOfViewedMsgs-- > 10) {
-            raw25Msgs.remove(0);
-        }
+    /**
+     * Canonical key of the chat between the users: sorted logins joined by space, which can't be a part of a login.
+     * Keys of rooms have no space.
+     */
+    public static String keyOf(Collection<String> users) {
+        return users.stream().sorted().collect(Collectors.joining(" "));
+    }
 
-        var formattedMsgs = appendNewAndFormat(raw25Msgs, currUser);
+    public static String roomKeyOf(String name) {
+        return ROOM_KEY_PREFIX + name;
+    }
 
-        makeMessagesNotNew(messages, currUser);
-        serialize(chats, dbPath, gson);
+    private static void indexByUser(String user, Chat chat) {
+        chatsByUser.computeIfAbsent(user, k -> ConcurrentHashMap.newKeySet()).add(chat);
+    }
+
+    /**
+     * Chats the user is a member of.
+     */
+    public static Collection<Chat> getChatsOfUser(String login) {
+        return chatsByUser.getOrDefault(login, Set.of());
+    }
+
+    public List<String> getLast25Msgs(String currUser) {
+        List<String> formattedMsgs;
+        lock.lock();
+        try {
+            touch();
+            // the chat is being opened, its tail is going to be used again
+            loadTail();
+
+            int read = getReadUpTo(currUser);
+            int indexFrom = Math.max(0, size - 25);
 
+            // show no more than 10 viewed msgs
+            int numOfViewedMsgs = Math.max(0, read - indexFrom);
+            if (numOfViewedMsgs > 10) {
+                indexFrom += numOfViewedMsgs - 10;
+            }
+
+            formattedMsgs = new ArrayList<>(size - indexFrom);
+            int i = indexFrom;
+            for (Message message : getMessages(indexFrom, size)) {
+                String msg = format(message);
+                formattedMsgs.add(i >= read ? "(new) " + msg : msg);
+                i++;
+            }
+
+            if (read < size) {
+                setReadUpTo(currUser, size);
+                log.append(ChatLogRecord.read(getPersistedId(), currUser, size));
+            }
+        } finally {
+            lock.unlock();
+        }
+        evictIfOverBudget();
         return formattedMsgs;
     }
 
-    public synchronized void sendMessage(String sender, String msg) {
-        String fullMsg = sender + ": " + msg;
-        Set<String> notInChatUsers = getNotInChatUsers(users, usersCurrInChat);
+    /**
+     * Adds the message to the history without waiting for the disk. Once the returned ack completes,
+     * the message is pushed to the users in the chat, even if its sender is gone by then;
+     * the sender may call {@link #deliver} to push it sooner, on its own thread.
+     */
+    public CompletableFuture<Void> sendMessage(String sender, String msg) {
+        long offset;
+        lock.lock();
+        try {
+            touch();
+            var message = new Message(memberIndex.get(sender), msg, System.currentTimeMillis());
+
+            // users in the chat see the message right away
+            Set<String> readers = new HashSet<>(subscribers.keySet());
+            readers.add(sender);
+            append(message, readers);
+
+            List<Integer> seen = readers
+                    .stream()
+                    .filter(u -> !u.equals(sender))
+                    .map(memberIndex::get)
+                    .collect(Collectors.toList());
+            offset = log.append(ChatLogRecord.message(getPersistedId(), message.sender, msg, seen, message.time));
+            index.append(size - 1, offset);
+
+            // queued under the lock so that every subscriber gets messages in the order of the history
+            fanOut.add(new Delivery(Frame.text(sender + ": " + msg), offset));
+        } finally {
+            lock.unlock();
+        }
+        evictIfOverBudget();
+        // users see a message once it's acknowledged, not on the journal writer that acknowledges it
+        CompletableFuture<Void> ack = log.ack(offset);
+        if (ack.isDone()) {
+            deliver();
+        } else {
+            ack.thenRunAsync(this::deliver, fanOutExecutor);
+        }
+        return ack;
+    }
 
-        messages.add(Map.entry(fullMsg, notInChatUsers));
+    /**
+     * Delivers the queued messages outside of the chat lock. One thread at a time delivers,
+     * including the messages queued by the others in the meantime, so the order is kept.
+     * It stops at the first message not acknowledged yet: that one is delivered once its ack completes.
+     */
+    public void deliver() {
+        // checked again after the flag is cleared, a message acknowledged meanwhile could have found it set
+        while (isNextAcknowledged() && isDelivering.compareAndSet(false, true)) {
+            try {
+                while (isNextAcknowledged()) {
+                    Frame frame = fanOut.poll().frame;
+                    long start = System.nanoTime();
+                    for (Session session : subscribers.values()) {
+                        session.sendToClient(frame);
+                    }
+                    Metrics.FAN_OUT.record(System.nanoTime() - start);
+                }
+            } finally {
+                isDelivering.set(false);
+            }
+        }
+    }
 
-        usersCurrInChat
-                .stream()
-                .map(server::getSession)
-                .filter(Objects::nonNull)
-                .forEach(session -> session.sendMsgToClient(fullMsg));
+    /**
+     * Makes the user a member of the room.
+     *
+     * @return completes with false if the user is a member already, with true once the join is acknowledged
+     */
+    public CompletableFuture<Boolean> addMember(String user) {
+        if (room == null) {
+            throw new IllegalStateException("Members of a chat of two users are fixed");
+        }
 
-        serialize(chats, dbPath, gson);
+        long offset;
+        lock.lock();
+        try {
+            if (memberIndex.containsKey(user)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            int id = getPersistedId();
+            putMember(user);
+            // together with the membership, a member of the room always finds it among the chats
+            indexByUser(user, this);
+            offset = log.append(ChatLogRecord.join(id, user));
+        } finally {
+            lock.unlock();
+        }
+        return log.ack(offset).thenApply(v -> true);
     }
 
-    public void joinChat(String user) {
-        if (users.contains(user)) {
-            usersCurrInChat.add(user);
+    /**
+     * Subscribes the session of a member to new messages of the chat.
+     */
+    public void joinChat(Session session) {
+        if (memberIndex.containsKey(session.getLogin())) {
+            subscribers.put(session.getLogin(), session);
         } else {
             throw new IllegalArgumentException("Specified user is not a member of this chat");
         }
     }
 
-    public void leaveChat(String user) {
-        usersCurrInChat.remove(user);
+    public void leaveChat(Session session) {
+        // a newer session of the same user could have replaced this one
+        subscribers.remove(session.getLogin(), session);
     }
 
-    private static Set<String> getNotInChatUsers(Set<String> users, Set<String> usersCurrInChat) {
-        return users
-                .stream()
-                .filter(u -> !usersCurrInChat.contains(u))
-                .collect(Collectors.toCollection(CopyOnWriteArraySet::new));
+    public boolean isRoom() {
+        return room != null;
     }
 
-    private static List<String> appendNewAndFormat(List<Map.Entry<String, Set<String>>> messages, String currUser) {
-        return messages
+    /**
+     * A new member has read the messages sent before joining. Called under the chat lock, or before the chat is published.
+     */
+    private void putMember(String user) {
+        memberIndex.put(user, members.size());
+        members.add(user);
+        readUpTo.put(user, size);
+        caughtUp.add(user);
+    }
+
+    /**
+     * Called under the chat lock, or before the chat is published.
+     * Only the members who had read everything before the message are visited, not the whole membership.
+     */
+    private void append(Message message, Set<String> readers) {
+        tail.addLast(message);
+        addTailBytes(estimateBytes(message));
+        if (tail.size() > Settings.HISTORY_HOT_TAIL) {
+            addTailBytes(-estimateBytes(tail.removeFirst()));
+        }
+        size++;
+        stats.add(members.get(message.sender), message.text, message.time);
+
+        List<String> gotUnread = caughtUp
                 .stream()
-                .map(l -> l.getValue().contains(currUser) ? "(new) " + l.getKey() : l.getKey())
+                .filter(u -> !readers.contains(u))
                 .collect(Collectors.toList());
+        gotUnread.forEach(this::indexUnread);
+        readers.forEach(u -> setReadUpTo(u, size));
     }
 
-    private static void makeMessagesNotNew(List<Map.Entry<String, Set<String>>> messages, String currUser) {
-        for (int i = messages.size() - 1; i >= 0; i--) {
-            var notOnlineUsers = messages.get(i).getValue();
-            if (!notOnlineUsers.remove(currUser)) {
+    /**
+     * Messages with indexes in [from, to): the part before the tail is read from the log. Called under the chat lock.
+     */
+    private List<Message> getMessages(int from, int to) {
+        int firstInTail = size - tail.size();
+        List<Message> result = new ArrayList<>(Math.max(0, to - from));
+        if (from < firstInTail) {
+            result.addAll(readFromLog(from, Math.min(to, firstInTail)));
+        }
+        int i = firstInTail;
+        for (Message message : tail) {
+            if (i >= to) {
                 break;
             }
+            if (i >= from) {
+                result.add(message);
+            }
+            i++;
         }
+        return result;
     }
 
-    private static synchronized void serialize(List<Chat> chats, String dbPath, Gson gson) {
-        try (FileWriter fileWriter = new FileWriter(dbPath)) {
-            chats.forEach(c -> {
-                try {
-                    fileWriter
-                            .append(gson.toJson(c.users))
-                            .append("\n")
-                            .append(gson.toJson(c.messages))
-                            .append("\n");
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+    /**
+     * Refills the tail of a chat whose history was dropped or cut short. Called under the chat lock.
+     */
+    private void loadTail() {
+        int wanted = Math.min(size, Settings.HISTORY_HOT_TAIL);
+        int firstInTail = size - tail.size();
+        if (tail.size() >= wanted) {
+            return;
+        }
+        List<Message> loaded = readFromLog(size - wanted, firstInTail);
+        for (int i = loaded.size() - 1; i >= 0; i--) {
+            tail.addFirst(loaded.get(i));
+            addTailBytes(estimateBytes(loaded.get(i)));
+        }
+    }
+
+    /**
+     * Messages of the chat with indexes in [from, to): by their offsets if the index covers them,
+     * otherwise by a scan of the log (chats that began in a legacy log).
+     */
+    private List<Message> readFromLog(int from, int to) {
+        List<Message> loaded = new ArrayList<>(Math.max(0, to - from));
+        if (from >= to) {
+            return loaded;
+        }
+        if (index != null && to <= index.size()) {
+            for (long offset : index.read(from, to)) {
+                loaded.add(toMessage(log.readAt(offset)));
+            }
+            return loaded;
+        }
+
+        int[] ordinal = {0};
+        log.replay(record -> {
+            if (record.getOp() == ChatLogRecord.Op.MSG && isRecordOf(record)) {
+                if (ordinal[0] >= from && ordinal[0] < to) {
+                    loaded.add(toMessage(record));
                 }
-            });
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+                ordinal[0]++;
+            }
+        });
+        return loaded;
+    }
+
+    private boolean isRecordOf(ChatLogRecord record) {
+        return record.isLegacy()
+                ? room == null && key.equals(keyOf(record.getUsers()))
+                : id >= 0 && record.getId() == id;
+    }
+
+    private Message toMessage(ChatLogRecord record) {
+        long time = record.getTime() != null ? record.getTime() : 0;
+        if (!record.isLegacy()) {
+            return new Message(record.getFrom(), record.getText(), time);
+        }
+        String sender = record.getSender() != null ? record.getSender() : parseSender(members, record.getMsg());
+        return new Message(memberIndex.get(sender), record.getMsg().substring(sender.length() + 2), time);
+    }
+
+    private boolean isNextAcknowledged() {
+        Delivery next = fanOut.peek();
+        return next != null && log.isAcknowledged(next.offset);
+    }
+
+    private void touch() {
+        lastAccess = System.nanoTime();
+    }
+
+    private void addTailBytes(long bytes) {
+        tailBytes += bytes;
+        tailBytesOfAllChats.add(bytes);
+    }
+
+    private static long estimateBytes(Message message) {
+        return MESSAGE_OVERHEAD + 2L * message.text.length();
+    }
+
+    /**
+     * Starts a pass of {@link #evict} in the background once the history is over the budget.
+     */
+    private static void evictIfOverBudget() {
+        if (tailBytesOfAllChats.sum() > evictAbove && isEvicting.compareAndSet(false, true)) {
+            evictor.execute(Chat::evict);
         }
     }
 
-    private static List<Chat> deserialize(String dbPath, Gson gson) {
-        List<String> raw;
+    /**
+     * Drops the tails of the least recently used chats nobody has open, until the history fits well in the budget.
+     * The next pass waits until the history grows by a quarter of the budget again, so the chats are sorted
+     * once per that much of new messages, also when the open chats alone are over the budget.
+     * Chats that are busy are skipped rather than waited for.
+     */
+    private static void evict() {
         try {
-            raw = Files.readAllLines(Path.of(dbPath));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            long target = Settings.HISTORY_MEMORY_BUDGET / 4 * 3;
+            List<Chat> idleChats = chats
+                    .values()
+                    .stream()
+                    .filter(c -> c.tailBytes > 0 && c.subscribers.isEmpty())
+                    .sorted(Comparator.comparingLong(c -> c.lastAccess))
+                    .collect(Collectors.toList());
+            for (Chat chat : idleChats) {
+                if (tailBytesOfAllChats.sum() <= target) {
+                    break;
+                }
+                chat.dropTail();
+            }
+            evictAbove = Math.max(Settings.HISTORY_MEMORY_BUDGET, tailBytesOfAllChats.sum() + Settings.HISTORY_MEMORY_BUDGET / 4);
+        } finally {
+            isEvicting.set(false);
+        }
+    }
+
+    private void dropTail() {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            addTailBytes(-tailBytes);
+            tail.clear();
+        } finally {
+            lock.unlock();
         }
+    }
 
-        List<Chat> newChats = new CopyOnWriteArrayList<>();
-        for (int i = 0; i < raw.size(); i += 2) {
-            Set<String> newUsers = gson
-                    .fromJson(raw.get(i), new TypeToken<CopyOnWriteArraySet<String>>() {
-                    }.getType());
+    private String format(Message message) {
+        return members.get(message.sender) + ": " + message.text;
+    }
 
-            List<Map.Entry<String, Set<String>>> newMessages = gson
-                    .fromJson(raw.get(i + 1), new TypeToken<CopyOnWriteArrayList<AbstractMap.SimpleEntry<String, CopyOnWriteArraySet<String>>>>() {
-                    }.getType());
+    private int getReadUpTo(String user) {
+        return readUpTo.getOrDefault(user, 0);
+    }
 
-            newChats.add(new Chat(newUsers, newMessages));
+    private void setReadUpTo(String user, int upTo) {
+        readUpTo.put(user, upTo);
+        indexUnread(user);
+    }
+
+    private int getUnreadCount(String user) {
+        return Math.max(0, size - getReadUpTo(user));
+    }
+
+    /**
+     * Keeps the index of chats with unread messages in step with the read watermark of the user.
+     */
+    private void indexUnread(String user) {
+        if (getUnreadCount(user) > 0) {
+            caughtUp.remove(user);
+            chatsWithUnread.computeIfAbsent(user, k -> ConcurrentHashMap.newKeySet()).add(this);
+        } else {
+            caughtUp.add(user);
+            var unreadChats = chatsWithUnread.get(user);
+            if (unreadChats != null) {
+                unreadChats.remove(this);
+            }
         }
+    }
 
-        return newChats;
+    /**
+     * Writes the chat itself to the log before its first record. Called under the chat lock.
+     */
+    private int getPersistedId() {
+        if (id < 0) {
+            id = nextId.getAndIncrement();
+            log.append(ChatLogRecord.chat(id, room, List.copyOf(members)));
+            index = new ChatIndex(indexDir.resolve(id + ".idx"));
+            // left by a log that lost its tail
+            index.truncate(0);
+        }
+        return id;
     }
 
-    public String getStatistic(String curUserName) {
-        long curUserMsgsLen = messages
+    /**
+     * Checks the index against the log while it's replayed and adds the entries it lacks,
+     * e.g. when the server stopped between writing a message and its entry.
+     */
+    private void indexOnReplay(int ordinal, long offset) {
+        if (index == null) {
+            return;
+        }
+        if (ordinal == 0 && index.size() > 0 && index.read(0, 1)[0] != offset) {
+            // index of an earlier log
+            index.truncate(0);
+        }
+        index.append(ordinal, offset);
+    }
+
+    private static void deleteIndexes() {
+        if (!Files.isDirectory(indexDir)) {
+            return;
+        }
+        try (var files = Files.list(indexDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Message of a db written before read watermarks, with the users who haven't read it.
+     */
+    private void appendLegacy(Message message, Set<String> unread) {
+        Set<String> readers = members
                 .stream()
-                .filter(e -> e.getKey().startsWith(curUserName + ": "))
-                .count();
+                .filter(u -> !unread.contains(u))
+                .collect(Collectors.toSet());
+        append(message, readers);
+    }
 
-        String secUserName = users
+    /**
+     * Sender of a message stored without one. The longest matching login wins,
+     * so that a login which is a prefix of another one isn't mistaken for it.
+     */
+    private static String parseSender(Collection<String> members, String fullMsg) {
+        return members
                 .stream()
-                .filter(u -> !u.equals(curUserName))
-                .findFirst()
+                .filter(u -> fullMsg.startsWith(u + ": "))
+                .max(Comparator.comparingInt(String::length))
                 .orElseThrow(IllegalStateException::new);
+    }
+
+    /**
+     * Applies the records from the offset on, but for those the snapshot already has.
+     */
+    private static void replay(ChatLog log, long from, Map<Integer, Chat> chatsById, Map<String, Long> replayFrom) {
+        log.replay(from, (record, offset) -> {
+            if (record.isLegacy()) {
+                Chat chat = getChat(Set.copyOf(record.getUsers()));
+                if (offset < replayFrom.getOrDefault(chat.key, 0L)) {
+                    return;
+                }
+                if (record.getOp() == ChatLogRecord.Op.MSG) {
+                    chat.indexOnReplay(chat.size, offset);
+                    chat.appendLegacy(chat.toMessage(record), record.getUnread());
+                } else if (record.getOp() == ChatLogRecord.Op.READ) {
+                    chat.setReadUpTo(record.getUser(), chat.size);
+                }
+                return;
+            }
+
+            Chat known = chatsById.get(record.getId());
+            if (known != null && offset < replayFrom.getOrDefault(known.key, 0L)) {
+                return;
+            }
+            if (record.getOp() == ChatLogRecord.Op.CHAT) {
+                Chat chat;
+                if (record.getRoom() != null) {
+                    chat = getRoom(record.getRoom());
+                    record.getUsers().forEach(u -> {
+                        chat.putMember(u);
+                        indexByUser(u, chat);
+                    });
+                } else {
+                    chat = getChat(Set.copyOf(record.getUsers()));
+                }
+                chat.id = record.getId();
+                chat.index = new ChatIndex(indexDir.resolve(chat.id + ".idx"));
+                chatsById.put(chat.id, chat);
+                nextId.accumulateAndGet(chat.id + 1, Math::max);
+            } else if (record.getOp() == ChatLogRecord.Op.MSG) {
+                Chat chat = chatsById.get(record.getId());
+                Set<String> readers = new HashSet<>();
+                readers.add(chat.members.get(record.getFrom()));
+                if (record.getSeen() != null) {
+                    record.getSeen().forEach(i -> readers.add(chat.members.get(i)));
+                }
+                chat.indexOnReplay(chat.size, offset);
+                chat.append(chat.toMessage(record), readers);
+            } else if (record.getOp() == ChatLogRecord.Op.READ) {
+                chatsById.get(record.getId()).setReadUpTo(record.getUser(), record.getUpTo());
+            } else if (record.getOp() == ChatLogRecord.Op.JOIN) {
+                Chat chat = chatsById.get(record.getId());
+                chat.putMember(record.getUser());
+                indexByUser(record.getUser(), chat);
+            }
+            evictIfOverBudget();
+        });
+
+        for (Chat chat : chatsById.values()) {
+            // entries past the end of a log that lost its tail
+            chat.index.truncate(chat.size);
+        }
+    }
+
+    /**
+     * Restores the chats of the snapshot, decoded and built in parallel: they are independent of each other.
+     *
+     * @return offset to replay the log from, 0 without a usable snapshot
+     */
+    private static long loadSnapshot(Map<Integer, Chat> chatsById, Map<String, Long> replayFrom) {
+        Snapshot.Header header = Snapshot.readHeader(snapshotPath);
+        if (header == null || log.getJournal().length() < header.getLength()) {
+            return 0;
+        }
+        List<ChatSnapshot> snapshots = Collections.synchronizedList(new ArrayList<>());
+        Snapshot.readParallel(snapshotPath, line -> snapshots.add(gson.fromJson(line, ChatSnapshot.class)));
+        // messages of the snapshot are only in the log, they have to be read by their offsets
+        boolean isIndexed = snapshots
+                .parallelStream()
+                .allMatch(s -> s.id < 0 || new ChatIndex(indexDir.resolve(s.id + ".idx")).size() >= s.size);
+        if (!isIndexed) {
+            return 0;
+        }
+
+        snapshots.parallelStream().forEach(snapshot -> {
+            Chat chat = restore(snapshot);
+            replayFrom.put(chat.key, snapshot.from);
+            if (chat.id >= 0) {
+                chatsById.put(chat.id, chat);
+            }
+        });
+        return header.getFrom();
+    }
+
+    /**
+     * @return null for a chat that has nothing in the log yet
+     */
+    private String takeSnapshot() {
+        lock.lock();
+        try {
+            if (id < 0 && size == 0) {
+                return null;
+            }
+            return gson.toJson(new ChatSnapshot(this, log.getJournal().end()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The history of a restored chat is read from the log when the chat is opened.
+     */
+    private static Chat restore(ChatSnapshot snapshot) {
+        Chat chat = snapshot.room != null ? getRoom(snapshot.room) : getChat(Set.copyOf(snapshot.members));
+        if (snapshot.room != null) {
+            snapshot.members.forEach(u -> {
+                chat.putMember(u);
+                indexByUser(u, chat);
+            });
+        }
+        chat.size = snapshot.size;
+        chat.stats.restore(snapshot.stats);
+        chat.members.forEach(u -> chat.setReadUpTo(u, snapshot.readUpTo.getOrDefault(u, 0)));
+        if (snapshot.id >= 0) {
+            chat.id = snapshot.id;
+            chat.index = new ChatIndex(indexDir.resolve(chat.id + ".idx"));
+            nextId.accumulateAndGet(chat.id + 1, Math::max);
+        }
+        return chat;
+    }
+
+    /**
+     * Before the log, the file held two lines per chat: a JSON array of users and a JSON array of messages.
+     */
+    private static boolean isLegacyDb(String dbPath) {
+        try (BufferedReader reader = Files.newBufferedReader(Path.of(dbPath))) {
+            String firstLine = reader.readLine();
+            return firstLine != null && firstLine.startsWith("[");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Rewrites the legacy db as a log, a chat at a time. A message was read by the members not in its unread set.
+     */
+    private static void migrateToLog(String dbPath, Gson gson) {
+        Path tmpPath = Path.of(dbPath + ".tmp");
+        Type usersType = new TypeToken<List<String>>() {
+        }.getType();
+        Type messagesType = new TypeToken<List<Map.Entry<String, Set<String>>>>() {
+        }.getType();
+        Map<String, Integer> ids = new HashMap<>(); // by key
+
+        try (BufferedReader reader = Files.newBufferedReader(Path.of(dbPath))) {
+            Files.deleteIfExists(tmpPath);
+            // fsynced once, when it's closed
+            var tmpLog = new ChatLog(tmpPath, gson, Durability.ASYNC);
+            String usersLine;
+            String messagesLine;
+            while ((usersLine = reader.readLine()) != null && (messagesLine = reader.readLine()) != null) {
+                List<String> users = gson.fromJson(usersLine, usersType);
+                List<Map.Entry<String, Set<String>>> messages = gson.fromJson(messagesLine, messagesType);
+                if (messages.isEmpty()) {
+                    continue;
+                }
+
+                List<String> members = users.stream().sorted().distinct().collect(Collectors.toList());
+                Integer id = ids.get(keyOf(members));
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(keyOf(members), id);
+                    tmpLog.append(ChatLogRecord.chat(id, null, members));
+                }
+                for (var msg : messages) {
+                    String sender = parseSender(members, msg.getKey());
+                    List<Integer> seen = new ArrayList<>();
+                    for (int i = 0; i < members.size(); i++) {
+                        if (!members.get(i).equals(sender) && !msg.getValue().contains(members.get(i))) {
+                            seen.add(i);
+                        }
+                    }
+                    tmpLog.append(ChatLogRecord.message(id, members.indexOf(sender),
+                            msg.getKey().substring(sender.length() + 2), seen, 0));
+                }
+            }
+            tmpLog.close();
+            Files.move(tmpPath, Path.of(dbPath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String getStatistic(String curUserName) {
+        if (room != null) {
+            // per-member lines don't scale with the membership of a room
+            return new StringBuilder()
+                    .append("Server:\n")
+                    .append("Statistics of ").append(getTitle(curUserName))
+                    .append(":\n")
+                    .append("Members: ").append(members.size())
+                    .append("\n")
+                    .append("Total messages: ").append(size)
+                    .append("\n")
+                    .append("Messages from ").append(curUserName).append(": ").append(stats.getMessages(curUserName))
+                    .toString();
+        }
+
+        String secUserName = getSecondUser(curUserName);
 
         return new StringBuilder()
                 .append("Server:\n")
                 .append("Statistics with ").append(secUserName)
                 .append(":\n")
-                .append("Total messages: ").append(messages.size())
+                .append("Total messages: ").append(size)
                 .append("\n")
-                .append("Messages from ").append(curUserName).append(": ").append(curUserMsgsLen)
+                .append("Messages from ").append(curUserName).append(": ").append(stats.getMessages(curUserName))
                 .append("\n")
-                .append("Messages from ").append(secUserName).append(": ").append(messages.size() - curUserMsgsLen)
+                .append("Messages from ").append(secUserName).append(": ").append(stats.getMessages(secUserName))
                 .toString();
     }
 
-    public synchronized List<String> getNLastMsgsStartingFrom(int from, int len) {
+    /**
+     * Name of the chat for the user: the other user, or the room.
+     */
+    private String getTitle(String user) {
+        return room != null ? ROOM_KEY_PREFIX + room : getSecondUser(user);
+    }
+
+    private String getSecondUser(String user) {
+        return members
+                .stream()
+                .filter(u -> !u.equals(user))
+                .findFirst()
+                .orElseThrow(IllegalStateException::new);
+    }
+
+    public List<String> getNLastMsgsStartingFrom(int from, int len) {
         if (from < 0 || len < 0) {
             throw new IllegalArgumentException("Values should not be negative");
         }
 
-        int indexFrom = messages.size() < from ? 0 : messages.size() - from;
-        int indexTo = Math.min(messages.size() - from + len, messages.size());
+        lock.lock();
+        try {
+            touch();
+            int indexFrom = size < from ? 0 : size - from;
+            int indexTo = Math.min(size - from + len, size);
 
-        if (indexTo <= 0) {
-            return List.of();
-        }
+            if (indexTo <= 0) {
+                return List.of();
+            }
 
-        return messages
-                .subList(indexFrom, indexTo)
-                .stream()
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toList());
+            // older pages are read from the log without being kept
+            return getMessages(indexFrom, indexTo)
+                    .stream()
+                    .map(this::format)
+                    .collect(Collectors.toList());
+        } finally {
+            lock.unlock();
+        }
     }
 
     public static List<String> getUsersThatSentUnreadMsgs(String login) {
-        return chats
-                .stream()
-                .filter(c -> c.users.contains(login))
-                .filter(c -> c.messages.stream().anyMatch(m -> m.getValue().contains(login)))
-                .map(c -> c.users.stream().filter(u -> !u.equals(login)).findFirst().orElseThrow(IllegalStateException::new))
-                .sorted()
-                .collect(Collectors.toList());
+        return new ArrayList<>(getUnreadCounts(login).keySet());
+    }
+
+    /**
+     * Number of unread messages of the user by the other user of the chat or by the room, sorted by name.
+     * Only chats that have unread messages are visited.
+     */
+    public static SortedMap<String, Integer> getUnreadCounts(String login) {
+        SortedMap<String, Integer> counts = new TreeMap<>();
+        chatsWithUnread
+                .getOrDefault(login, Set.of())
+                .forEach(c -> {
+                    int count = c.getUnreadCount(login);
+                    if (count > 0) {
+                        counts.put(c.getTitle(login), count);
+                    }
+                });
+        return counts;
+    }
+
+    /**
+     * A message queued for the subscribers, with the offset of its record.
+     */
+    private static class Delivery {
+        private final Frame frame;
+        private final long offset;
+
+        Delivery(Frame frame, long offset) {
+            this.frame = frame;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * A chat in the snapshot: everything but the messages.
+     */
+    private static class ChatSnapshot {
+        private final int id; // -1 for a chat of a legacy log
+        private final String room;
+        private final List<String> members;
+        private final int size;
+        private final Map<String, Integer> readUpTo;
+        private final ChatStats stats;
+        private final long from; // offset of the first record of the chat not in the snapshot
+
+        ChatSnapshot(Chat chat, long from) {
+            this.id = chat.id;
+            this.room = chat.room;
+            this.members = chat.members;
+            this.size = chat.size;
+            this.readUpTo = chat.readUpTo;
+            this.stats = chat.stats;
+            this.from = from;
+        }
+    }
+
+    /**
+     * Reads messages of the legacy db, {"key": "sender: text", "value": [unread by]}.
+     * Gson can't reflect into {@code java.util} entry classes on JDK 17+.
+     */
+    private static class MessageAdapter implements JsonDeserializer<Map.Entry<String, Set<String>>> {
+        private static final Type UNREAD_TYPE = new TypeToken<CopyOnWriteArraySet<String>>() {
+        }.getType();
+
+        @Override
+        public Map.Entry<String, Set<String>> deserialize(JsonElement json, Type type, JsonDeserializationContext context) {
+            var obj = json.getAsJsonObject();
+            return new AbstractMap.SimpleEntry<>(obj.get("key").getAsString(), context.deserialize(obj.get("value"), UNREAD_TYPE));
+        }
     }
 }
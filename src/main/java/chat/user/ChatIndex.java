@@ -0,0 +1,93 @@
+package chat.user;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Offsets in the chats log of the messages of one chat, by ordinal: entry i is 8 bytes at i * 8.
+ * Entries only ever cover the messages from the first one on without gaps, so that any page of history
+ * is two reads: its offsets, then its records.
+ * <p>
+ * Guarded by the lock of its chat. The file is open only for a read or a write: a server has many more chats
+ * than it may have open files.
+ */
+class ChatIndex {
+    private static final int ENTRY_LEN = Long.BYTES;
+
+    private final Path path;
+    private long entries;
+
+    ChatIndex(Path path) {
+        this.path = path;
+        try {
+            this.entries = Files.exists(path) ? Files.size(path) / ENTRY_LEN : 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public long size() {
+        return entries;
+    }
+
+    /**
+     * Adds the offset of the next message. An ordinal that isn't the next one is ignored:
+     * the chat has messages the index doesn't cover, and it's read by a scan of the log.
+     * So is a failed write, the message is in the log already.
+     */
+    public void append(long ordinal, long offset) {
+        if (ordinal != entries) {
+            return;
+        }
+        try (FileChannel channel = open()) {
+            channel.write(ByteBuffer.allocate(ENTRY_LEN).putLong(offset).flip(), entries * ENTRY_LEN);
+            entries++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return offsets of the messages with ordinals in [from, to), which have to be in the index
+     */
+    public long[] read(int from, int to) {
+        var buffer = ByteBuffer.allocate((to - from) * ENTRY_LEN);
+        try (FileChannel channel = open()) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, (long) from * ENTRY_LEN + buffer.position()) < 0) {
+                    throw new IOException("Index is shorter than " + to + " entries: " + path);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        buffer.flip();
+        long[] offsets = new long[to - from];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = buffer.getLong();
+        }
+        return offsets;
+    }
+
+    public void truncate(long entries) {
+        if (entries >= this.entries) {
+            return;
+        }
+        try (FileChannel channel = open()) {
+            channel.truncate(entries * ENTRY_LEN);
+            this.entries = entries;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        Files.createDirectories(path.getParent());
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
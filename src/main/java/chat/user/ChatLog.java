@@ -0,0 +1,209 @@
+package chat.user;
+
+import chat.additional.Durability;
+import chat.additional.Metrics;
+import com.google.gson.Gson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Append-only log of chat changes, one JSON record per line.
+ * Writing a record costs the same no matter how much history the server has,
+ * records are written by the {@link Journal} of the file.
+ * <p>
+ * Records are read back by offset from memory-mapped segments of the file, see {@link ChatIndex}.
+ */
+class ChatLog {
+    private static final long SEGMENT_LEN = 64L * 1024 * 1024;
+
+    private final Path path;
+    private final Gson gson;
+    private final Lock lock;
+    private final Map<Long, MappedByteBuffer> segments; // by offset of the segment
+    private final Journal journal; // its length is the bytes of complete records, readers don't go past it
+    private FileChannel readChannel;
+
+    ChatLog(Path path, Gson gson, Durability durability) {
+        this.path = path;
+        this.gson = gson;
+        this.lock = new ReentrantLock();
+        this.segments = new ConcurrentHashMap<>();
+        this.journal = new Journal(path, durability);
+    }
+
+    /**
+     * Queues the record, its order in the log is the order of the calls. See {@link #await} for its ack.
+     *
+     * @return offset of the record in the file
+     */
+    public long append(ChatLogRecord record) {
+        long start = System.nanoTime();
+        long offset = journal.append((gson.toJson(record) + "\n").getBytes(StandardCharsets.UTF_8));
+        Metrics.CHAT_SERIALIZE.record(System.nanoTime() - start);
+        return offset;
+    }
+
+    /**
+     * Returns once the record at the offset is acknowledged in the durability mode of the log.
+     */
+    public void await(long offset) {
+        journal.await(offset);
+    }
+
+    /**
+     * Same as {@link #await} without blocking, see {@link Journal#ack}.
+     */
+    public CompletableFuture<Void> ack(long offset) {
+        return journal.ack(offset);
+    }
+
+    public boolean isAcknowledged(long offset) {
+        return journal.isAcknowledged(offset);
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    public void close() throws IOException {
+        journal.close();
+        lock.lock();
+        try {
+            if (readChannel != null) {
+                readChannel.close();
+                readChannel = null;
+            }
+            segments.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Streams the records written so far. Safe while other threads append:
+     * records still queued at the moment of the call are not read.
+     */
+    public void replay(Consumer<ChatLogRecord> consumer) {
+        replay(0, (record, offset) -> consumer.accept(record));
+    }
+
+    /**
+     * Same as {@link #replay(Consumer)} from the offset of a record, with the offset of each record.
+     * Records are decoded in parallel, see {@link Journal#replay}.
+     */
+    public void replay(long from, ObjLongConsumer<ChatLogRecord> consumer) {
+        journal.replay(from, line -> line.isBlank() ? null : gson.fromJson(line, ChatLogRecord.class), consumer);
+    }
+
+    /**
+     * Reads the record that starts at the offset, from a memory-mapped segment of the file.
+     */
+    public ChatLogRecord readAt(long offset) {
+        // a record of a chat that dropped its tail may still be queued
+        journal.awaitWritten(offset);
+        try {
+            long segmentStart = offset / SEGMENT_LEN * SEGMENT_LEN;
+            int start = (int) (offset - segmentStart);
+            MappedByteBuffer segment = segments.get(segmentStart);
+            int end = segment == null ? -1 : indexOfNewline(segment, start);
+            if (end < 0 && (segment == null || segment.limit() < mappedLengthOf(segmentStart))) {
+                // not mapped yet, or the file has grown past the mapping
+                segment = map(segmentStart);
+                end = indexOfNewline(segment, start);
+            }
+            if (end < 0) {
+                // the record continues in the next segment
+                return gson.fromJson(readUnmapped(offset), ChatLogRecord.class);
+            }
+
+            byte[] bytes = new byte[end - start];
+            segment.get(start, bytes);
+            return gson.fromJson(Journal.decode(bytes, 0, bytes.length), ChatLogRecord.class);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return bytes of the segment in the file now, a mapping shorter than that is stale
+     */
+    private long mappedLengthOf(long segmentStart) {
+        return Math.min(SEGMENT_LEN, journal.length() - segmentStart);
+    }
+
+    /**
+     * Maps the segment as far as the file goes, unless another reader has just done it.
+     */
+    private MappedByteBuffer map(long segmentStart) throws IOException {
+        lock.lock();
+        try {
+            long len = mappedLengthOf(segmentStart);
+            MappedByteBuffer segment = segments.get(segmentStart);
+            if (segment != null && segment.limit() >= len) {
+                return segment;
+            }
+            segment = getReadChannel().map(FileChannel.MapMode.READ_ONLY, segmentStart, len);
+            segments.put(segmentStart, segment);
+            return segment;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private FileChannel getReadChannel() throws IOException {
+        lock.lock();
+        try {
+            if (readChannel == null) {
+                readChannel = FileChannel.open(path);
+            }
+            return readChannel;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads a record that crosses the end of a segment, with positional reads of the shared channel.
+     */
+    private String readUnmapped(long offset) throws IOException {
+        FileChannel channel = getReadChannel();
+        var out = new ByteArrayOutputStream();
+        var buffer = ByteBuffer.allocate(8192);
+        long position = offset;
+        while (channel.read(buffer.clear(), position) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    byte[] bytes = out.toByteArray();
+                    return Journal.decode(bytes, 0, bytes.length);
+                }
+                out.write(b);
+            }
+            position += buffer.limit();
+        }
+        throw new IOException("Record at " + offset + " isn't complete");
+    }
+
+    private static int indexOfNewline(ByteBuffer segment, int from) {
+        for (int i = from; i < segment.limit(); i++) {
+            if (segment.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
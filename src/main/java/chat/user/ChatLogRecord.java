@@ -0,0 +1,59 @@
+package chat.user;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One line of the chats log. Fields not used by an operation stay null and are not written.
+ */
+@AllArgsConstructor
+@Data
+class ChatLogRecord {
+    public final Op op;
+    public final Integer id; // chat id
+    public final List<String> users; // CHAT: members, senders are indexes in this list
+    public final String room; // CHAT: name of a room, null for a chat of two users
+    public final Integer from; // MSG: sender
+    public final String text;
+    public final List<Integer> seen; // MSG: other members who were in the chat
+    public final String user; // READ, JOIN
+    public final Integer upTo; // READ: number of messages read by the user
+    public final Long time; // epoch millis
+
+    // logs written before read watermarks identify the chat by its users
+    // and store the full message with the set of users who haven't read it
+    public final String sender;
+    public final String msg;
+    public final Set<String> unread;
+
+    enum Op {
+        CHAT, // chat is written for the first time
+        MSG,  // new message
+        READ, // user has read the messages of the chat
+        JOIN  // user has become a member of the room, the next index in the members
+    }
+
+    static ChatLogRecord chat(int id, String room, List<String> users) {
+        return new ChatLogRecord(Op.CHAT, id, users, room, null, null, null, null, null, null, null, null, null);
+    }
+
+    static ChatLogRecord message(int id, int from, String text, List<Integer> seen, long time) {
+        return new ChatLogRecord(Op.MSG, id, null, null, from, text, seen.isEmpty() ? null : seen, null, null,
+                time == 0 ? null : time, null, null, null);
+    }
+
+    static ChatLogRecord read(int id, String user, int upTo) {
+        return new ChatLogRecord(Op.READ, id, null, null, null, null, null, user, upTo, null, null, null, null);
+    }
+
+    static ChatLogRecord join(int id, String user) {
+        return new ChatLogRecord(Op.JOIN, id, null, null, null, null, null, user, null, null, null, null, null);
+    }
+
+    boolean isLegacy() {
+        return id == null;
+    }
+}
@@ -0,0 +1,76 @@
+package chat.user;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-sender counters of a chat, kept up to date on every message so that /stats doesn't rescan the history.
+ * Updated under the chat lock, read without it.
+ */
+class ChatStats {
+    private final Map<String, SenderStats> bySender; // by login
+
+    ChatStats() {
+        this.bySender = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param time epoch millis, 0 if unknown (messages written before times were recorded)
+     */
+    public void add(String sender, String text, long time) {
+        bySender
+                .computeIfAbsent(sender, s -> new SenderStats())
+                .add(text.getBytes(StandardCharsets.UTF_8).length, time);
+    }
+
+    public long getMessages(String sender) {
+        SenderStats stats = bySender.get(sender);
+        return stats == null ? 0 : stats.messages;
+    }
+
+    public SenderStats get(String sender) {
+        return bySender.get(sender);
+    }
+
+    /**
+     * Takes the counters of a chat restored from a snapshot.
+     */
+    public void restore(ChatStats stats) {
+        bySender.putAll(stats.bySender);
+    }
+
+    static class SenderStats {
+        private volatile long messages;
+        private volatile long bytes;
+        private volatile long firstTime;
+        private volatile long lastTime;
+
+        private void add(int msgBytes, long time) {
+            messages++;
+            bytes += msgBytes;
+            if (time > 0) {
+                if (firstTime == 0) {
+                    firstTime = time;
+                }
+                lastTime = time;
+            }
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getFirstTime() {
+            return firstTime;
+        }
+
+        public long getLastTime() {
+            return lastTime;
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package chat.user;
+
+import chat.additional.Durability;
+import chat.additional.LatencyHistogram;
+import chat.additional.Settings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Append-only file written by one writer thread. Records appended by many sessions in the meantime
+ * go to the file with one write and one fsync, see {@link Durability} for when a record is acknowledged.
+ * <p>
+ * A record gets its offset on append, in the order of the appends. Callers append under their own locks
+ * to keep that order and {@link #await} the ack outside of them, or have the writer complete an {@link #ack}
+ * when it isn't theirs to wait. The lock of the journal is held only to take an offset,
+ * acks are awaited on a phaser advanced by every write, not on the lock.
+ */
+public class Journal implements JournalMXBean {
+    private static final int MAX_QUEUED_BATCHES = 64; // appends wait above it, the writer can't keep up
+    private static final int REPLAY_BLOCK_LEN = 1024 * 1024;
+
+    private final Path path;
+    private final Durability durability;
+    private final int batchSize;
+    private final Lock lock;
+    private final Condition isQueued;
+    private final Condition isWritten; // appends waiting for room in the queue
+    private final Phaser batchesWritten; // advanced by the writer after every write, acks are awaited on it
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> acks; // by offset, completed by the writer
+    private final Queue<Record> queue; // guarded by lock
+    private final LatencyHistogram ackLatency;
+    private final AtomicLong writes;
+    private final AtomicLong bytesWritten;
+    private final Thread writer;
+    private FileChannel channel; // used by the writer thread only
+    private long end; // offset of the next record, guarded by lock
+    private volatile long length; // bytes written and fsynced
+    private boolean isClosed; // guarded by lock
+    private volatile IOException failure; // set under lock
+
+    public Journal(Path path, Durability durability) {
+        this.path = path;
+        this.durability = durability;
+        this.batchSize = durability == Durability.SYNC ? 1 : Math.max(1, Settings.JOURNAL_BATCH_SIZE);
+        this.lock = new ReentrantLock();
+        this.isQueued = lock.newCondition();
+        this.isWritten = lock.newCondition();
+        this.batchesWritten = new Phaser(1); // the writer
+        this.acks = new ConcurrentSkipListMap<>();
+        this.queue = new ArrayDeque<>();
+        this.ackLatency = new LatencyHistogram();
+        this.writes = new AtomicLong();
+        this.bytesWritten = new AtomicLong();
+        try {
+            this.length = Files.exists(path) ? cutTornLine(path) : 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.end = length;
+        this.writer = new Thread(this::write, "journal-" + path.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the bytes for the writer thread.
+     *
+     * @return offset of the record in the file
+     */
+    public long append(byte[] bytes) {
+        var record = new Record(bytes, System.nanoTime());
+        lock.lock();
+        try {
+            while (queue.size() >= batchSize * MAX_QUEUED_BATCHES && !isClosed && failure == null) {
+                isWritten.awaitUninterruptibly();
+            }
+            checkWritable();
+            long offset = end;
+            end += bytes.length;
+            queue.add(record);
+            isQueued.signal();
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns once the record at the offset is acknowledged: right away in the async mode,
+     * after its write and fsync otherwise.
+     */
+    public void await(long offset) {
+        if (durability != Durability.ASYNC) {
+            awaitWritten(offset);
+        }
+    }
+
+    /**
+     * Same as {@link #await} without blocking: the ack completes on the writer thread once the record is written,
+     * exceptionally if the journal fails or is closed before. It's completed already in the async mode.
+     */
+    public CompletableFuture<Void> ack(long offset) {
+        if (isAcknowledged(offset)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> ack = acks.computeIfAbsent(offset, o -> new CompletableFuture<>());
+        // the writer could have gone past the offset before the ack was added
+        if (offset < length || batchesWritten.isTerminated()) {
+            completeAcks();
+        }
+        return ack;
+    }
+
+    /**
+     * Completes the acks of the records written, and all of them once the writer stopped.
+     */
+    private void completeAcks() {
+        Map.Entry<Long, CompletableFuture<Void>> ack;
+        while ((ack = acks.firstEntry()) != null && ack.getKey() < length) {
+            if (acks.remove(ack.getKey(), ack.getValue())) {
+                ack.getValue().complete(null);
+            }
+        }
+        if (batchesWritten.isTerminated()) {
+            RuntimeException e = failure != null
+                    ? new RuntimeException(failure)
+                    : new IllegalStateException("Journal is closed: " + path);
+            while ((ack = acks.pollFirstEntry()) != null) {
+                ack.getValue().completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * @return true if the record at the offset is acknowledged, see {@link #await}
+     */
+    public boolean isAcknowledged(long offset) {
+        return durability == Durability.ASYNC || offset < length;
+    }
+
+    /**
+     * Returns once the record at the offset is in the file, whatever the mode.
+     */
+    public void awaitWritten(long offset) {
+        while (offset >= length) {
+            // the writer updates the length before it advances the phase, so a write isn't missed between the two
+            int phase = batchesWritten.getPhase();
+            if (offset < length) {
+                return;
+            }
+            if (phase < 0) {
+                // the writer stopped
+                if (failure != null) {
+                    throw new RuntimeException(failure);
+                }
+                throw new IllegalStateException("Journal is closed: " + path);
+            }
+            batchesWritten.awaitAdvance(phase);
+        }
+    }
+
+    /**
+     * Streams the lines written so far from the offset, which is the start of a line.
+     * Blocks of lines are decoded in parallel on the common fork-join pool and consumed in the order of the file,
+     * with the offset of each line. Lines decoded to null are skipped.
+     */
+    public <T> void replay(long from, Function<String, T> decoder, ObjLongConsumer<T> consumer) {
+        long end = length;
+        if (from >= end) {
+            return;
+        }
+        Deque<CompletableFuture<Block<T>>> decoding = new ArrayDeque<>();
+        int window = 2 * ForkJoinPool.getCommonPoolParallelism();
+        try (FileChannel channel = FileChannel.open(path)) {
+            byte[] buffer = new byte[REPLAY_BLOCK_LEN];
+            int filled = 0;
+            long position = from; // of buffer[0]
+            while (position + filled < end) {
+                int len = (int) Math.min(buffer.length - filled, end - position - filled);
+                int read = channel.read(ByteBuffer.wrap(buffer, filled, len), position + filled);
+                if (read < 0) {
+                    break;
+                }
+                filled += read;
+                int cut = lastIndexOfNewline(buffer, filled);
+                if (cut < 0) {
+                    if (filled == buffer.length) {
+                        // a line longer than a block
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                    continue;
+                }
+
+                byte[] block = Arrays.copyOf(buffer, cut + 1);
+                long blockOffset = position;
+                decoding.add(CompletableFuture.supplyAsync(() -> decode(block, blockOffset, decoder)));
+                System.arraycopy(buffer, cut + 1, buffer, 0, filled - cut - 1);
+                filled -= cut + 1;
+                position += cut + 1;
+                while (decoding.size() >= window) {
+                    consume(decoding.poll(), consumer);
+                }
+            }
+            if (filled > 0) {
+                // a last line without a newline
+                byte[] block = Arrays.copyOf(buffer, filled);
+                long blockOffset = position;
+                decoding.add(CompletableFuture.supplyAsync(() -> decode(block, blockOffset, decoder)));
+            }
+            while (!decoding.isEmpty()) {
+                consume(decoding.poll(), consumer);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static <T> Block<T> decode(byte[] bytes, long offset, Function<String, T> decoder) {
+        var block = new Block<T>();
+        int start = 0;
+        for (int i = 0; i <= bytes.length; i++) {
+            if (i < bytes.length && bytes[i] != '\n') {
+                continue;
+            }
+            if (i > start) {
+                T value = decoder.apply(decode(bytes, start, i - start));
+                if (value != null) {
+                    block.add(value, offset + start);
+                }
+            }
+            start = i + 1;
+        }
+        return block;
+    }
+
+    private static <T> void consume(CompletableFuture<Block<T>> decoding, ObjLongConsumer<T> consumer) {
+        Block<T> block;
+        try {
+            block = decoding.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException r ? r : new RuntimeException(e.getCause());
+        }
+        for (int i = 0; i < block.size; i++) {
+            @SuppressWarnings("unchecked")
+            T value = (T) block.values[i];
+            consumer.accept(value, block.offsets[i]);
+        }
+    }
+
+    /**
+     * Cuts the bytes after the last newline of the file: a record the writer didn't finish before a crash,
+     * it was never acknowledged. Records appended after it would continue its line otherwise.
+     *
+     * @return length of the file
+     */
+    private static long cutTornLine(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long length = size;
+            byte[] block = new byte[4096];
+            while (length > 0) {
+                int len = (int) Math.min(block.length, length);
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, len);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, length - len + buffer.position()) < 0) {
+                        throw new IOException("File shrunk while opened: " + path);
+                    }
+                }
+                int newline = lastIndexOfNewline(block, len);
+                if (newline >= 0) {
+                    length += newline + 1 - len;
+                    break;
+                }
+                length -= len;
+            }
+            if (length < size) {
+                channel.truncate(length);
+                channel.force(true);
+            }
+            return length;
+        }
+    }
+
+    private static int lastIndexOfNewline(byte[] bytes, int len) {
+        for (int i = len - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static String decode(byte[] bytes, int off, int len) {
+        // lines of files written on Windows
+        if (len > 0 && bytes[off + len - 1] == '\r') {
+            len--;
+        }
+        return new String(bytes, off, len, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return bytes of the records in the file, readers don't go past it
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return offset of the next record appended
+     */
+    public long end() {
+        lock.lock();
+        try {
+            return end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Latency from the append of a record to its fsync, the ack latency of the sync and group modes.
+     */
+    public LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    @Override
+    public long getRecords() {
+        return ackLatency.getCount();
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Writes the queued records and stops the writer thread.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            isClosed = true;
+            isQueued.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long records = ackLatency.getCount();
+        long writes = getWrites();
+        return path + " (" + durability + "): " + records + " records, " + getBytesWritten() + " bytes in " + writes + " writes"
+                + (writes == 0 ? "" : String.format(" (%.1f per write)", (double) records / writes))
+                + ", append to fsync " + ackLatency;
+    }
+
+    private void write() {
+        var batch = new ArrayDeque<Record>(batchSize);
+        while (true) {
+            lock.lock();
+            try {
+                awaitBatch();
+                if (queue.isEmpty()) {
+                    closeChannel(); // closed
+                    batchesWritten.forceTermination();
+                    completeAcks();
+                    return;
+                }
+                while (batch.size() < batchSize && !queue.isEmpty()) {
+                    batch.add(queue.poll());
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            long written = 0;
+            IOException failure = null;
+            try {
+                written = writeAndSync(batch);
+            } catch (IOException e) {
+                e.printStackTrace();
+                failure = e;
+            }
+
+            long now = System.nanoTime();
+            for (Record record : batch) {
+                ackLatency.record(now - record.appendedAt);
+            }
+            writes.incrementAndGet();
+            bytesWritten.addAndGet(written);
+            batch.clear();
+
+            lock.lock();
+            try {
+                length += written;
+                this.failure = failure;
+                isWritten.signalAll();
+                if (failure != null) {
+                    queue.clear();
+                    closeChannel();
+                    batchesWritten.forceTermination();
+                    completeAcks();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            batchesWritten.arrive();
+            completeAcks();
+        }
+    }
+
+    /**
+     * Waits for records: in the async mode for a full batch or the interval since the first record.
+     * Records of the other modes are written right away, the next batch fills up during the fsync of the last one.
+     */
+    private void awaitBatch() {
+        while (queue.isEmpty() && !isClosed) {
+            isQueued.awaitUninterruptibly();
+        }
+        if (durability != Durability.ASYNC || queue.isEmpty()) {
+            return;
+        }
+        long deadline = queue.peek().appendedAt + TimeUnit.MILLISECONDS.toNanos(Settings.JOURNAL_FLUSH_INTERVAL_MS);
+        long remaining;
+        while (queue.size() < batchSize && !isClosed && (remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                isQueued.awaitNanos(remaining);
+            } catch (InterruptedException e) {
+                // the writer isn't interrupted, it stops by close
+            }
+        }
+    }
+
+    private long writeAndSync(Queue<Record> batch) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long bytes = 0;
+        int i = 0;
+        for (Record record : batch) {
+            buffers[i++] = ByteBuffer.wrap(record.bytes);
+            bytes += record.bytes.length;
+        }
+        long written = 0;
+        while (written < bytes) {
+            written += channel.write(buffers);
+        }
+        channel.force(false);
+        return bytes;
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+
+    private void checkWritable() {
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+        if (isClosed) {
+            throw new IllegalStateException("Journal is closed: " + path);
+        }
+    }
+
+    /**
+     * Decoded lines of a block with their offsets in the file.
+     */
+    private static class Block<T> {
+        private Object[] values = new Object[64];
+        private long[] offsets = new long[64];
+        private int size;
+
+        private void add(T value, long offset) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            values[size] = value;
+            offsets[size++] = offset;
+        }
+    }
+
+    private static class Record {
+        private final byte[] bytes;
+        private final long appendedAt;
+
+        Record(byte[] bytes, long appendedAt) {
+            this.bytes = bytes;
+            this.appendedAt = appendedAt;
+        }
+    }
+}
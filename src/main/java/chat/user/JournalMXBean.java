@@ -0,0 +1,24 @@
+package chat.user;
+
+import chat.additional.Durability;
+
+/**
+ * JMX view of a {@link Journal}, since the server started.
+ */
+public interface JournalMXBean {
+    Durability getDurability();
+
+    /**
+     * @return records written, their append to fsync latency is the JournalAck MXBean of the file
+     */
+    long getRecords();
+
+    long getWrites();
+
+    long getBytesWritten();
+
+    /**
+     * @return bytes of the records in the file
+     */
+    long getLength();
+}
@@ -0,0 +1,15 @@
+package chat.user;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Message of a chat. Whether it's new for a user follows from the user's read watermark in the chat.
+ */
+@AllArgsConstructor
+@Data
+class Message {
+    public final int sender; // index of the sender in the chat members
+    public final String text;
+    public final long time; // epoch millis, 0 if unknown
+}
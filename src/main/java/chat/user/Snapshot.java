@@ -0,0 +1,123 @@
+package chat.user;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Compacted state of a db file: a header line with the offsets in the file the state is current up to,
+ * then one line per independent entity (a user, a chat). Replaced atomically, so it's either the last one or absent.
+ */
+class Snapshot {
+    private static final String HEADER_PREFIX = "#"; // entities are JSON objects
+    private static final Gson gson = new Gson();
+
+    private Snapshot() {
+    }
+
+    /**
+     * The new file is on the disk before it replaces the last one, and the rename is before this returns:
+     * a crash leaves one of the two whole.
+     */
+    static void write(Path path, Header header, List<String> lines) {
+        Path tmpPath = Path.of(path + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             BufferedWriter writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8))) {
+            writer.write(HEADER_PREFIX + gson.toJson(header));
+            writer.newLine();
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+            writer.flush();
+            channel.force(true);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        forceDirectory(path.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Writes the entries of the directory to the disk. Some platforms can't open a directory,
+     * there the rename is as durable as the file system makes it.
+     */
+    private static void forceDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not on this platform
+        }
+    }
+
+    /**
+     * @return the header, null if there's no snapshot
+     */
+    static Header readHeader(Path path) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            return line == null || !line.startsWith(HEADER_PREFIX)
+                    ? null
+                    : gson.fromJson(line.substring(HEADER_PREFIX.length()), Header.class);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Streams the entities in parallel on the common fork-join pool, in no particular order.
+     */
+    static void readParallel(Path path, Consumer<String> consumer) {
+        try (Stream<String> lines = Files.lines(path, StandardCharsets.UTF_8)) {
+            lines.parallel().filter(line -> !line.isBlank() && !line.startsWith(HEADER_PREFIX)).forEach(consumer);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static class Header {
+        private final long from; // the file is replayed from it on top of the snapshot
+        private final long length; // of the file when the snapshot was written, a shorter file lost what it holds
+
+        Header(long from, long length) {
+            this.from = from;
+            this.length = length;
+        }
+
+        public long getFrom() {
+            return from;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
@@ -11,5 +11,5 @@ public class User {
     public final String login;
     public final String password;
     public final CopyOnWriteArrayList<String> roles;
-    public long blockedUntil;
+    public volatile long blockedUntil;
 }
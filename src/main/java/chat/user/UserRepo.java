@@ -1,151 +1,349 @@
 package chat.user;
 
+import chat.additional.Metrics;
 import chat.additional.ServerMessage;
+import chat.additional.Settings;
 import com.google.gson.Gson;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import static chat.additional.ServerMessage.*;
 
+/**
+ * Users by login. The db file holds one user per line, a changed user is appended again
+ * and the last line of a login wins when the file is loaded. Lines are written by the {@link Journal} of the file.
+ * <p>
+ * {@link #recover} loads the users, it isn't done by class loading.
+ * Sessions don't look up their user per message, they {@link #watch} its {@link Authorization}.
+ */
 public class UserRepo {
     private static final String dbPath;
-    private static final Set<User> users;
+    private static final Path snapshotPath;
+    private static final ConcurrentMap<String, User> users; // by login
     private static final Gson gson;
+    private static final ConcurrentMap<String, Set<Consumer<Authorization>>> watchers; // by login
+    private static final ScheduledExecutorService banExpiry;
+    private static final ConcurrentMap<String, BanTimer> banTimers; // by login, of the watched users who are banned
+    private static Journal journal; // opened by recover
+    private static volatile Consumer<String> replica; // gets the records written, in cluster mode
 
     static {
         dbPath = "usersDb.txt";
+        snapshotPath = Path.of("usersDb.snapshot");
         gson = new Gson();
+        users = new ConcurrentHashMap<>();
+        watchers = new ConcurrentHashMap<>();
+        banTimers = new ConcurrentHashMap<>();
+        banExpiry = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "ban-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the users: the snapshot, decoded in parallel, then the lines written after it. Called before use,
+     * and again after {@link #close} to load the files anew.
+     */
+    public static void recover() {
+        users.clear();
+        Path path = Path.of(dbPath);
+        long from = 0;
+        Snapshot.Header header = Snapshot.readHeader(snapshotPath);
         try {
-            if (Files.exists(Path.of(dbPath))) {
-                users = deserialize();
-            } else {
-                users = new CopyOnWriteArraySet<>();
+            if (header != null && Files.exists(path) && Files.size(path) >= header.getLength()) {
+                Snapshot.readParallel(snapshotPath, line -> {
+                    User user = gson.fromJson(line, User.class);
+                    users.put(user.getLogin(), user);
+                });
+                from = header.getFrom();
             }
         } catch (IOException e) {
-            e.printStackTrace();
             throw new RuntimeException(e);
         }
+
+        journal = new Journal(path, Settings.DURABILITY);
+        // the last line of a login wins
+        journal.replay(from, line -> line.isBlank() ? null : gson.fromJson(line, User.class),
+                (user, offset) -> users.put(user.getLogin(), user));
+    }
+
+    /**
+     * Writes the users to the snapshot. Lines of the changes made in the meantime are replayed on top of it.
+     */
+    public static void snapshot() {
+        long from = journal.end();
+        List<String> lines = getRecords();
+        // the snapshot may hold changes made while it was taken, they have to be in the file too
+        long length = journal.end();
+        journal.awaitWritten(length - 1);
+        Snapshot.write(snapshotPath, new Snapshot.Header(from, length), lines);
+    }
+
+    /**
+     * @return record of every user, as written to the db file
+     */
+    public static List<String> getRecords() {
+        return users.values().stream().map(gson::toJson).collect(Collectors.toList());
+    }
+
+    /**
+     * Has the consumer get every record written from now on, in the order of the lines of its login.
+     * Nodes of a cluster replicate the users this way.
+     */
+    public static void replicate(Consumer<String> consumer) {
+        replica = consumer;
     }
 
-    public static synchronized boolean saveIfAbsent(String login, String pass, List<String> roles) {
-        if (isUserLoginExists(login)) {
+    /**
+     * Applies a record of another node of the cluster: the user replaces the one here, it's written to the db file
+     * and its authorization is pushed to the watchers, but the record isn't replicated again.
+     */
+    public static void apply(String record) {
+        User user = gson.fromJson(record, User.class);
+        users.compute(user.getLogin(), (l, current) -> {
+            // nodes send all the records when they connect, most of them are known
+            if (current != null && record.equals(gson.toJson(current))) {
+                return current;
+            }
+            journal.append((record + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            publish(user);
+            return user;
+        });
+    }
+
+    public static void close() {
+        journal.close();
+    }
+
+    public static boolean saveIfAbsent(String login, String pass, List<String> roles) {
+        long[] offset = {-1};
+        // the record is queued before the user is seen, changes of the user come after it in the file
+        users.computeIfAbsent(login, l -> {
+            var user = new User(login, pass, new CopyOnWriteArrayList<>(roles), 0);
+            offset[0] = serialize(user);
+            return user;
+        });
+        if (offset[0] < 0) {
             return false;
         }
-        users.add(new User(login, pass, new CopyOnWriteArrayList<>(roles), 0));
-        serialize(users);
+        journal.await(offset[0]);
         return true;
     }
 
-    public static synchronized void serialize(Set<User> users) {
-        try (FileWriter fileWriter = new FileWriter(dbPath)) {
-            users.forEach(u -> {
-                try {
-                    fileWriter
-                            .append(gson.toJson(u))
-                            .append("\n");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            });
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Queues the user to be written. Called where the change is atomic, so the lines of a login keep its order.
+     *
+     * @return offset to {@link Journal#await} the ack of
+     */
+    public static long serialize(User user) {
+        long start = System.nanoTime();
+        String record = gson.toJson(user);
+        long offset = journal.append((record + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        Metrics.USER_SERIALIZE.record(System.nanoTime() - start);
+        Consumer<String> consumer = replica;
+        if (consumer != null) {
+            consumer.accept(record);
         }
-    }
-
-    public static synchronized Set<User> deserialize() throws IOException {
-        List<String> rawUsers = Files.readAllLines(Path.of(dbPath));
-        Set<User> newUsers = new CopyOnWriteArraySet<>();
-        rawUsers
-                .stream()
-                .map(u -> gson.fromJson(u, User.class))
-                .forEach(newUsers::add);
-
-        return newUsers;
+        return offset;
     }
 
     public static String getUserPassByLogin(String login) {
-        return users
-                .stream()
-                .filter(u -> u.getLogin().equals(login))
-                .findFirst()
-                .map(User::getPassword)
-                .orElse(null);
+        User user = getUser(login);
+        return user == null ? null : user.getPassword();
     }
 
     public static boolean isUserLoginExists(String login) {
-        return users
-                .stream()
-                .anyMatch(u -> u.getLogin().equals(login));
+        return getUser(login) != null;
     }
 
-    public static synchronized ServerMessage grantRole(String login, String role) {
-        User user = users
-                .stream()
-                .filter(u -> u.getLogin().equals(login))
-                .findFirst()
-                .orElse(null);
+    /**
+     * @return completes with the result once the change is acknowledged
+     */
+    public static CompletableFuture<ServerMessage> grantRole(String login, String role) {
+        var result = new ServerMessage[]{INCORRECT_LOGIN};
+        long[] offset = {-1};
+        // the change, its record and its push to the watchers are atomic per user
+        users.computeIfPresent(login, (l, user) -> {
+            if (user.getRoles().addIfAbsent(role)) {
+                offset[0] = serialize(user);
+                publish(user);
+                result[0] = ROLE_GRANTED;
+            } else {
+                result[0] = ROLE_WAS_GRANTED_PREVIOUSLY;
+            }
+            return user;
+        });
+        return ackIfSerialized(offset[0]).thenApply(v -> result[0]);
+    }
+
+    public static CompletableFuture<ServerMessage> removeRole(String login, String role) {
+        var result = new ServerMessage[]{INCORRECT_LOGIN};
+        long[] offset = {-1};
+        users.computeIfPresent(login, (l, user) -> {
+            if (user.getRoles().remove(role)) {
+                offset[0] = serialize(user);
+                publish(user);
+                result[0] = ROLE_REMOVED;
+            } else {
+                result[0] = NO_ROLE;
+            }
+            return user;
+        });
+        return ackIfSerialized(offset[0]).thenApply(v -> result[0]);
+    }
 
+    public static boolean isUserHasRole(String login, String role) {
+        User user = getUser(login);
         if (user == null) {
-            return INCORRECT_LOGIN;
-        } else if (user.getRoles().addIfAbsent(role)) {
-            serialize(users);
-            return ROLE_GRANTED;
-        } else return ROLE_WAS_GRANTED_PREVIOUSLY;
+            throw new IllegalArgumentException();
+        }
+        return user.getRoles().contains(role);
+    }
+
+    public static boolean isUserBlocked(String login) {
+        User user = getUser(login);
+        return user != null && user.getBlockedUntil() > now();
+    }
+
+    /**
+     * @return authorization of the user as of now, null if there's no such user
+     */
+    public static Authorization getAuthorization(String login) {
+        User user = getUser(login);
+        return user == null ? null : Authorization.of(user, now());
+    }
+
+    /**
+     * Has the watcher get the authorization of the user now, on every change of the user and when a ban expires.
+     * Authorizations are pushed under the lock of the user in the map, so the last one a watcher gets is the latest.
+     */
+    public static void watch(String login, Consumer<Authorization> watcher) {
+        watchers.compute(login, (l, userWatchers) -> {
+            Set<Consumer<Authorization>> set = userWatchers == null ? ConcurrentHashMap.newKeySet() : userWatchers;
+            set.add(watcher);
+            return set;
+        });
+        users.computeIfPresent(login, (l, user) -> {
+            publish(user);
+            return user;
+        });
+    }
+
+    public static void unwatch(String login, Consumer<Authorization> watcher) {
+        watchers.computeIfPresent(login, (l, userWatchers) -> {
+            userWatchers.remove(watcher);
+            return userWatchers.isEmpty() ? null : userWatchers;
+        });
     }
 
-    public static synchronized ServerMessage removeRole(String login, String role) {
-        User user = users
-                .stream()
-                .filter(u -> u.getLogin().equals(login))
-                .findFirst()
-                .orElse(null);
+    /**
+     * @return epoch seconds that ban deadlines are in
+     */
+    public static long now() {
+        return LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+    }
 
+    /**
+     * @return completes once the ban is acknowledged, it's in effect right away
+     */
+    public static CompletableFuture<Void> setBlocked(String login, long blockedUntil) {
+        long[] offset = {-1};
+        User user = users.computeIfPresent(login, (l, u) -> {
+            u.setBlockedUntil(blockedUntil);
+            offset[0] = serialize(u);
+            publish(u);
+            return u;
+        });
         if (user == null) {
-            return INCORRECT_LOGIN;
-        } else if (user.getRoles().remove(role)) {
-            serialize(users);
-            return ROLE_REMOVED;
-        } else {
-            return NO_ROLE;
+            throw new IllegalArgumentException();
         }
+        return journal.ack(offset[0]);
     }
 
-    public static boolean isUserHasRole(String login, String role) {
-        return users
-                .stream()
-                .filter(u -> u.getLogin().equals(login))
-                .findFirst()
-                .orElseThrow(IllegalArgumentException::new)
-                .getRoles()
-                .contains(role);
+    public static Journal getJournal() {
+        return journal;
     }
 
-    public static boolean isUserBlocked(String login) {
-        return users
-                .stream()
-                .filter(u -> u.getLogin().equals(login))
-                .map(u -> u.getBlockedUntil() > LocalDateTime.now().toEpochSecond(ZoneOffset.UTC))
-                .findFirst()
-                .orElse(false);
-    }
-
-    public static void setBlocked(String login, long blockedUntil) {
-        users
-                .stream()
-                .filter(u -> u.getLogin().equals(login))
-                .findFirst()
-                .orElseThrow(IllegalArgumentException::new)
-                .setBlockedUntil(blockedUntil);
-
-        serialize(users);
+    /**
+     * Pushes the authorization of the user to its watchers, called under the lock of the user in the map.
+     * A ban is followed by another push once it expires, one timer per ban instead of a check per message.
+     */
+    private static void publish(User user) {
+        Set<Consumer<Authorization>> userWatchers = watchers.get(user.getLogin());
+        if (userWatchers == null) {
+            scheduleBanExpiry(user.getLogin(), 0);
+            return;
+        }
+        Authorization authorization = Authorization.of(user, now());
+        userWatchers.forEach(watcher -> watcher.accept(authorization));
+        scheduleBanExpiry(user.getLogin(), authorization.isBlocked() ? authorization.getBlockedUntil() : 0);
+    }
+
+    /**
+     * Keeps the timer of the user in step with the ban: publishing the same ban again leaves it be,
+     * a ban that changed or was lifted cancels it. Called under the lock of the user in the map.
+     *
+     * @param blockedUntil epoch seconds, 0 if the user isn't banned or nobody watches the user
+     */
+    private static void scheduleBanExpiry(String login, long blockedUntil) {
+        BanTimer timer = banTimers.get(login);
+        if (timer != null && timer.blockedUntil == blockedUntil) {
+            return;
+        }
+        if (timer != null) {
+            timer.expiry.cancel(false);
+            banTimers.remove(login);
+        }
+        if (blockedUntil > 0) {
+            long delayMillis = blockedUntil * 1000 - LocalDateTime.now().toInstant(ZoneOffset.UTC).toEpochMilli();
+            var fired = new BanTimer(blockedUntil);
+            fired.expiry = banExpiry.schedule(() -> users.computeIfPresent(login, (l, u) -> {
+                // a ban that isn't over by the clock yet gets a timer again
+                banTimers.remove(login, fired);
+                publish(u);
+                return u;
+            }), Math.max(1, delayMillis), TimeUnit.MILLISECONDS);
+            banTimers.put(login, fired);
+        }
+    }
+
+    private static CompletableFuture<Void> ackIfSerialized(long offset) {
+        // the ack is taken outside of the map, the writer completes it
+        return offset >= 0 ? journal.ack(offset) : CompletableFuture.completedFuture(null);
+    }
+
+    private static User getUser(String login) {
+        // login is null until the session is authorized
+        return login == null ? null : users.get(login);
+    }
+
+    /**
+     * Push of the authorization scheduled for the end of a ban, guarded by the lock of the user in the map.
+     */
+    private static class BanTimer {
+        private final long blockedUntil;
+        private ScheduledFuture<?> expiry;
+
+        BanTimer(long blockedUntil) {
+            this.blockedUntil = blockedUntil;
+        }
     }
 }
@@ -0,0 +1,106 @@
+package chat.additional;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommandTest {
+    @Test
+    void everyCommandAloneHasNoArgs() {
+        for (Command command : Command.values()) {
+            assertSame(command, Command.of(command.msg), command.msg);
+            assertNull(Command.argsOf(command.msg, command), command.msg);
+        }
+    }
+
+    @Test
+    void everyCommandWithArgsKeepsThemAsTheyAre() {
+        for (Command command : Command.values()) {
+            String line = command.msg + " Bob  and more ";
+            assertSame(command, Command.of(line), line);
+            assertEquals("Bob  and more ", Command.argsOf(line, command), line);
+        }
+    }
+
+    @Test
+    void commandWithASpaceOnlyHasEmptyArgs() {
+        assertSame(Command.LIST, Command.of("/list "));
+        assertEquals("", Command.argsOf("/list ", Command.LIST));
+    }
+
+    @Test
+    void commandAloneMatchesInAnyCase() {
+        for (Command command : Command.values()) {
+            assertSame(command, Command.of(command.msg.toUpperCase()), command.msg);
+        }
+        assertSame(Command.EXIT, Command.of("/ExIt"));
+    }
+
+    @Test
+    void commandWithArgsMatchesAsItIs() {
+        assertNull(Command.of("/CHAT bob"));
+        assertNull(Command.of("/Auth alice 12345678"));
+        assertSame(Command.CHAT, Command.of("/chat bob"));
+    }
+
+    @Test
+    void nearMissesArePlainText() {
+        for (Command command : Command.values()) {
+            String msg = command.msg;
+            assertNull(Command.of(msg.substring(0, msg.length() - 1)), msg + " without its last char");
+            assertNull(Command.of(msg + "s"), msg + " with a char more");
+            assertNull(Command.of(msg + "s bob"), msg + " with a char more and args");
+            assertNull(Command.of(msg.substring(1)), msg + " without the slash");
+            assertNull(Command.of(" " + msg), msg + " after a space");
+            assertNull(Command.of("/" + msg), msg + " after another slash");
+        }
+        assertNull(Command.of("/unread" + "\t" + "counts"));
+        assertNull(Command.of("/stat"));
+        assertNull(Command.of("/statistic"));
+        assertNull(Command.of("/register"));
+    }
+
+    @Test
+    void linesThatAreNotCommands() {
+        assertNull(Command.of(""));
+        assertNull(Command.of("/"));
+        assertNull(Command.of("/ "));
+        assertNull(Command.of(" "));
+        assertNull(Command.of("hello /chat bob"));
+        assertNull(Command.of("/nonexistent"));
+    }
+
+    @Test
+    void opcodesAreUniqueAndMapBack() {
+        Set<Integer> opcodes = new HashSet<>();
+        for (Command command : Command.values()) {
+            assertTrue(command.opcode > Frame.TEXT, command.msg);
+            assertTrue(command.opcode < 256, command.msg);
+            assertTrue(opcodes.add(command.opcode), command.msg);
+            assertSame(command, Command.byOpcode(command.opcode));
+        }
+        assertNull(Command.byOpcode(Frame.TEXT));
+        assertNull(Command.byOpcode(-1));
+        assertNull(Command.byOpcode(255));
+    }
+
+    @Test
+    void framesOfLinesCarryTheOpcodeAndArgs() {
+        Frame chat = Frame.fromLine("/chat bob", 7);
+        assertEquals(Command.CHAT.opcode, chat.opcode);
+        assertEquals(7, chat.correlationId);
+        assertEquals("bob", chat.payload);
+        assertEquals("/chat bob", chat.toLine());
+
+        Frame list = Frame.fromLine("/list", 8);
+        assertEquals(Command.LIST.opcode, list.opcode);
+        assertEquals("", list.payload);
+
+        Frame text = Frame.fromLine("/chatty bob", 9);
+        assertEquals(Frame.TEXT, text.opcode);
+        assertEquals("/chatty bob", text.payload);
+    }
+}
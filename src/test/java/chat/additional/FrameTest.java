@@ -0,0 +1,183 @@
+package chat.additional;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameTest {
+    @Test
+    void binaryRoundTrip() throws IOException {
+        var frame = new Frame(Command.CHAT.opcode, 42, "bob");
+        Frame read = readBinary(bytesOf(frame.encodeBinary()));
+        assertFrame(frame, read);
+        assertEquals(4 + Frame.HEADER_LEN + 3, frame.encodeBinary().remaining());
+    }
+
+    @Test
+    void emptyPayloadIsAHeaderOnly() throws IOException {
+        var frame = new Frame(Command.LIST.opcode, 7, "");
+        byte[] bytes = bytesOf(frame.encodeBinary());
+        assertEquals(4 + Frame.HEADER_LEN, bytes.length);
+        assertEquals(Frame.HEADER_LEN, ByteBuffer.wrap(bytes).getInt());
+        assertFrame(frame, readBinary(bytes));
+    }
+
+    @Test
+    void correlationIdAndOpcodeKeepTheirBits() throws IOException {
+        var frame = new Frame(255, -1, "x");
+        assertFrame(frame, readBinary(bytesOf(frame.encodeBinary())));
+    }
+
+    @Test
+    void payloadUpToTheThresholdIsNotDeflated() throws IOException {
+        var frame = new Frame(Frame.TEXT, 1, "a".repeat(1024));
+        byte[] bytes = bytesOf(frame.encodeBinary());
+        assertEquals(4 + Frame.HEADER_LEN + 1024, bytes.length);
+        assertEquals(0, bytes[5]); // flags
+        assertFrame(frame, readBinary(bytes));
+    }
+
+    @Test
+    void payloadOverTheThresholdIsDeflated() throws IOException {
+        var frame = new Frame(Frame.TEXT, 1, "a".repeat(1025));
+        byte[] bytes = bytesOf(frame.encodeBinary());
+        assertTrue(bytes.length < 4 + Frame.HEADER_LEN + 1025);
+        assertEquals(1, bytes[5]); // flags
+        assertFrame(frame, readBinary(bytes));
+    }
+
+    @Test
+    void multiByteCharsSurviveDeflate() throws IOException {
+        var frame = new Frame(Frame.TEXT, 3, "\u043f\u0440\u0438\u0432\u0435\u0442, \u4e16\u754c \ud83d\ude00 ".repeat(200));
+        assertFrame(frame, readBinary(bytesOf(frame.encodeBinary())));
+    }
+
+    @Test
+    void incompressiblePayloadRoundTrips() throws IOException {
+        var random = new Random(1);
+        var text = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            text.append((char) ('!' + random.nextInt(90)));
+        }
+        var frame = new Frame(Frame.TEXT, 5, text.toString());
+        assertFrame(frame, readBinary(bytesOf(frame.encodeBinary())));
+    }
+
+    @Test
+    void frameOfTheMaxLengthIsRead() throws IOException {
+        byte[] bytes = rawFrame(Frame.MAX_BINARY_LEN, 0, new byte[Frame.MAX_BINARY_LEN - Frame.HEADER_LEN]);
+        Frame frame = readBinary(bytes);
+        assertEquals(Frame.MAX_BINARY_LEN - Frame.HEADER_LEN, frame.payload.length());
+    }
+
+    @Test
+    void lengthsOutsideTheLimitsAreRejected() {
+        assertThrows(IOException.class, () -> readBinary(rawFrame(Frame.MAX_BINARY_LEN + 1, 0, new byte[0])));
+        assertThrows(IOException.class, () -> readBinary(rawFrame(Frame.HEADER_LEN - 1, 0, new byte[0])));
+        assertThrows(IOException.class, () -> readBinary(rawFrame(-1, 0, new byte[0])));
+    }
+
+    @Test
+    void truncatedFrameIsRejected() {
+        byte[] bytes = bytesOf(new Frame(Frame.TEXT, 1, "hello").encodeBinary());
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertThrows(IOException.class, () -> readBinary(truncated));
+    }
+
+    @Test
+    void deflatedFrameInflatingOverTheMaxLengthIsRejected() {
+        byte[] bomb = deflate(new byte[Frame.MAX_BINARY_LEN + 1]);
+        IOException e = assertThrows(IOException.class, () -> readBinary(rawFrame(Frame.HEADER_LEN + bomb.length, 1, bomb)));
+        assertEquals("Compressed frame is too big", e.getMessage());
+    }
+
+    @Test
+    void truncatedDeflatedDataIsRejected() {
+        byte[] deflated = deflate("a".repeat(5000).getBytes(StandardCharsets.UTF_8));
+        byte[] truncated = new byte[deflated.length / 2];
+        System.arraycopy(deflated, 0, truncated, 0, truncated.length);
+        assertThrows(IOException.class, () -> readBinary(rawFrame(Frame.HEADER_LEN + truncated.length, 1, truncated)));
+    }
+
+    @Test
+    void utfFramingKeepsThePayload() throws IOException {
+        var frame = Frame.text("a".repeat(Frame.MAX_UTF_LEN));
+        byte[] bytes = bytesOf(frame.encodeUtf());
+        assertEquals(2 + Frame.MAX_UTF_LEN, bytes.length);
+        assertEquals(frame.payload, new DataInputStream(new ByteArrayInputStream(bytes)).readUTF());
+    }
+
+    @Test
+    void encodingIsSharedAndReadOnly() throws IOException {
+        var frame = new Frame(Frame.TEXT, 1, "hello");
+        ByteBuffer first = frame.encodeBinary();
+        first.get();
+        ByteBuffer second = frame.encodeBinary();
+        assertEquals(0, second.position());
+        assertTrue(second.isReadOnly());
+
+        var out = new ByteArrayOutputStream();
+        frame.writeBinary(new DataOutputStream(out));
+        assertArrayEquals(bytesOf(second), out.toByteArray());
+    }
+
+    @Test
+    void linesOfCommandsAndPushes() {
+        assertEquals("/chat bob", new Frame(Command.CHAT.opcode, 1, "bob").toLine());
+        assertEquals("/list", new Frame(Command.LIST.opcode, 1, "").toLine());
+        assertEquals("hello", new Frame(Frame.TEXT, 1, "hello").toLine());
+        assertTrue(Frame.text("hello").isPush());
+        assertFalse(Frame.reply(Frame.TEXT, 0, "hello").isPush());
+        assertFalse(Frame.reply(Frame.TEXT, 1, "hello").isPush());
+    }
+
+    private static void assertFrame(Frame expected, Frame actual) {
+        assertEquals(expected.opcode, actual.opcode);
+        assertEquals(expected.correlationId, actual.correlationId);
+        assertEquals(expected.payload, actual.payload);
+    }
+
+    private static Frame readBinary(byte[] bytes) throws IOException {
+        return Frame.readBinary(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static byte[] rawFrame(int len, int flags, byte[] data) {
+        return ByteBuffer.allocate(4 + Frame.HEADER_LEN + data.length)
+                .putInt(len)
+                .put((byte) Frame.TEXT)
+                .put((byte) flags)
+                .putInt(1)
+                .put(data)
+                .array();
+    }
+
+    private static byte[] bytesOf(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        var deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        var out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+}
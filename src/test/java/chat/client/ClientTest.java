@@ -0,0 +1,23 @@
+package chat.client;
+
+import org.junit.jupiter.api.Test;
+
+import static chat.additional.ServerMessage.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientTest {
+    @Test
+    void failedOrRefusedAuthAsksForCredentialsAgain() {
+        assertTrue(Client.asksForCredentials(AUTHORIZE_OR_REGISTER.msg));
+        assertTrue(Client.asksForCredentials(INCORRECT_PASSWORD.msg));
+        assertTrue(Client.asksForCredentials(LOGIN_ALREADY_TAKEN.msg));
+        assertTrue(Client.asksForCredentials(SERVER_BUSY.msg));
+    }
+
+    @Test
+    void successfulAuthDoesNotAskForCredentials() {
+        assertFalse(Client.asksForCredentials(AUTHORIZED_SUCCESSFULLY.msg));
+        assertFalse(Client.asksForCredentials(REGISTERED_SUCCESSFULLY.msg));
+        assertFalse(Client.asksForCredentials("alice: hello"));
+    }
+}
@@ -0,0 +1,128 @@
+package chat.server;
+
+import chat.additional.Command;
+import chat.additional.Frame;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameDecoderTest {
+    private static final List<Frame> FRAMES = List.of(
+            new Frame(Command.AUTH.opcode, 1, "alice 12345678"),
+            new Frame(Command.LIST.opcode, 2, ""),
+            new Frame(Frame.TEXT, 3, "x".repeat(5000)), // deflated
+            new Frame(Frame.TEXT, 4, "\u043f\u0440\u0438\u0432\u0435\u0442"));
+
+    @Test
+    void framesSplitAtAnyByteAreDecoded() throws IOException {
+        byte[] stream = binaryStream(FRAMES);
+        for (int split = 0; split <= stream.length; split++) {
+            var decoder = new BinaryFrameDecoder();
+            List<Frame> decoded = new ArrayList<>();
+            decoder.append(ByteBuffer.wrap(stream, 0, split));
+            drain(decoder, decoded);
+            decoder.append(ByteBuffer.wrap(stream, split, stream.length - split));
+            drain(decoder, decoded);
+            assertFrames(FRAMES, decoded);
+        }
+    }
+
+    @Test
+    void framesFedByteByByteAreDecoded() throws IOException {
+        byte[] stream = binaryStream(FRAMES);
+        var decoder = new BinaryFrameDecoder();
+        List<Frame> decoded = new ArrayList<>();
+        for (byte b : stream) {
+            decoder.append(ByteBuffer.wrap(new byte[]{b}));
+            drain(decoder, decoded);
+        }
+        assertFrames(FRAMES, decoded);
+    }
+
+    @Test
+    void lengthsOutsideTheLimitsAreRejectedBeforeThePayload() {
+        var decoder = new BinaryFrameDecoder();
+        decoder.append(ByteBuffer.allocate(4).putInt(0, Frame.MAX_BINARY_LEN + 1));
+        assertThrows(IOException.class, decoder::next);
+
+        var shortDecoder = new BinaryFrameDecoder();
+        shortDecoder.append(ByteBuffer.allocate(4).putInt(0, Frame.HEADER_LEN - 1));
+        assertThrows(IOException.class, shortDecoder::next);
+    }
+
+    @Test
+    void frameOfTheMaxLengthWaitsForItsLastByte() throws IOException {
+        byte[] frame = ByteBuffer.allocate(4 + Frame.MAX_BINARY_LEN)
+                .putInt(Frame.MAX_BINARY_LEN)
+                .array();
+        var decoder = new BinaryFrameDecoder();
+        decoder.append(ByteBuffer.wrap(frame, 0, frame.length - 1));
+        assertNull(decoder.next());
+        decoder.append(ByteBuffer.wrap(frame, frame.length - 1, 1));
+        assertEquals(Frame.MAX_BINARY_LEN - Frame.HEADER_LEN, decoder.next().payload.length());
+        assertNull(decoder.next());
+    }
+
+    @Test
+    void bytesAfterTheProtocolSwitchGoToTheBinaryDecoder() throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        bytes.write(bytesOf(Frame.text("/protocol binary").encodeUtf()));
+        bytes.write(binaryStream(FRAMES));
+
+        FrameDecoder decoder = new UtfFrameDecoder();
+        decoder.append(ByteBuffer.wrap(bytes.toByteArray()));
+        assertEquals("/protocol binary", decoder.next().payload);
+        decoder = decoder.switchTo(new BinaryFrameDecoder());
+
+        List<Frame> decoded = new ArrayList<>();
+        drain(decoder, decoded);
+        assertFrames(FRAMES, decoded);
+    }
+
+    @Test
+    void utfFrameOfTheMaxLengthIsDecoded() throws IOException {
+        String payload = "a".repeat(Frame.MAX_UTF_LEN);
+        var decoder = new UtfFrameDecoder();
+        ByteBuffer encoded = Frame.text(payload).encodeUtf();
+        decoder.append(encoded.duplicate().limit(encoded.limit() - 1));
+        assertNull(decoder.next());
+        decoder.append(encoded.duplicate().position(encoded.limit() - 1));
+        assertEquals(payload, decoder.next().payload);
+    }
+
+    private static byte[] binaryStream(List<Frame> frames) {
+        var out = new ByteArrayOutputStream();
+        for (Frame frame : frames) {
+            out.writeBytes(bytesOf(frame.encodeBinary()));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bytesOf(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void drain(FrameDecoder decoder, List<Frame> decoded) throws IOException {
+        Frame frame;
+        while ((frame = decoder.next()) != null) {
+            decoded.add(frame);
+        }
+    }
+
+    private static void assertFrames(List<Frame> expected, List<Frame> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).opcode, actual.get(i).opcode);
+            assertEquals(expected.get(i).correlationId, actual.get(i).correlationId);
+            assertEquals(expected.get(i).payload, actual.get(i).payload);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashRingTest {
+    private static final int KEYS = 100_000;
+    private static final int POINTS_PER_NODE = 128;
+
+    @Test
+    void keysSpreadEvenlyOverTheNodes() {
+        for (int nodes = 2; nodes <= 5; nodes++) {
+            var ring = new HashRing(names(nodes), POINTS_PER_NODE);
+            int[] owned = new int[nodes];
+            for (int i = 0; i < KEYS; i++) {
+                owned[ring.nodeOf(key(i))]++;
+            }
+            double even = (double) KEYS / nodes;
+            for (int node = 0; node < nodes; node++) {
+                assertTrue(Math.abs(owned[node] - even) < even * 0.2,
+                        "node " + node + " of " + nodes + " owns " + owned[node] + " keys of " + KEYS);
+            }
+        }
+    }
+
+    @Test
+    void ownerOfAKeyIsTheSameOnEveryNode() {
+        var ring = new HashRing(names(3), POINTS_PER_NODE);
+        var other = new HashRing(names(3), POINTS_PER_NODE);
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(ring.nodeOf(key(i)), other.nodeOf(key(i)));
+        }
+    }
+
+    @Test
+    void addingANodeMovesOnlyTheKeysItTakes() {
+        var ring = new HashRing(names(3), POINTS_PER_NODE);
+        var grown = new HashRing(names(4), POINTS_PER_NODE);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            int before = ring.nodeOf(key(i));
+            int after = grown.nodeOf(key(i));
+            if (before != after) {
+                assertEquals(3, after, key(i) + " moved between the old nodes");
+                moved++;
+            }
+        }
+        // about a quarter of the keys go to the new node
+        assertTrue(moved > KEYS * 0.15 && moved < KEYS * 0.35, moved + " keys of " + KEYS + " moved");
+    }
+
+    @Test
+    void removingANodeMovesOnlyItsKeys() {
+        List<String> nodes = names(4);
+        var ring = new HashRing(nodes, POINTS_PER_NODE);
+        List<String> left = new ArrayList<>(nodes);
+        left.remove(1);
+        var shrunk = new HashRing(left, POINTS_PER_NODE);
+        for (int i = 0; i < KEYS; i++) {
+            int before = ring.nodeOf(key(i));
+            if (before != 1) {
+                assertEquals(nodes.get(before), left.get(shrunk.nodeOf(key(i))), key(i) + " moved off a node that stayed");
+            }
+        }
+    }
+
+    @Test
+    void singleNodeOwnsEverything() {
+        var ring = new HashRing(names(1), POINTS_PER_NODE);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, ring.nodeOf(key(i)));
+        }
+    }
+
+    @Test
+    void similarKeysHashFarApart() {
+        long a = HashRing.hash("alice:bob");
+        long b = HashRing.hash("alice:bob1");
+        assertNotEquals(a, b);
+        assertTrue(Long.bitCount(a ^ b) > 16, Long.toHexString(a) + " " + Long.toHexString(b));
+        assertEquals(HashRing.hash("#room"), HashRing.hash("#room"));
+    }
+
+    private static List<String> names(int nodes) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            names.add("127.0.0.1:" + (13345 + i));
+        }
+        return names;
+    }
+
+    private static String key(int i) {
+        return i % 2 == 0 ? "user" + i + ":user" + (i + 1) : "#room" + i;
+    }
+}
@@ -0,0 +1,116 @@
+package chat.server;
+
+import chat.additional.Frame;
+import chat.additional.SlowConsumerPolicy;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static chat.server.OutboundQueue.Result.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundQueueTest {
+    private static final int CAPACITY = 4;
+
+    @Test
+    void framesAreDrainedInOrder() {
+        var queue = new OutboundQueue(CAPACITY, SlowConsumerPolicy.DROP);
+        for (int i = 0; i < CAPACITY; i++) {
+            assertEquals(QUEUED, queue.offer(Frame.text("m" + i), false));
+        }
+        List<OutboundQueue.Item> items = new ArrayList<>();
+        queue.drainTo(items, 3);
+        assertEquals(List.of("m0", "m1", "m2"), payloads(items));
+        assertEquals(1, queue.size());
+
+        items.clear();
+        queue.drainTo(items, 10);
+        assertEquals(List.of("m3"), payloads(items));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void dropDropsTheNewPush() {
+        var queue = full(SlowConsumerPolicy.DROP);
+        assertEquals(DROPPED, queue.offer(Frame.text("late"), false));
+        assertEquals(List.of("m0", "m1", "m2", "m3"), drain(queue));
+    }
+
+    @Test
+    void disconnectOverflows() {
+        var queue = full(SlowConsumerPolicy.DISCONNECT);
+        assertEquals(OVERFLOW, queue.offer(Frame.text("late"), false));
+        assertEquals(CAPACITY, queue.size());
+    }
+
+    @Test
+    void coalesceMergesThePushIntoTheLastOne() {
+        var queue = full(SlowConsumerPolicy.COALESCE);
+        assertEquals(QUEUED, queue.offer(Frame.text("a"), false));
+        assertEquals(QUEUED, queue.offer(Frame.text("b"), false));
+        assertEquals(List.of("m0", "m1", "m2", "m3\na\nb"), drain(queue));
+    }
+
+    @Test
+    void coalesceKeepsTheFramingOfEachFrame() {
+        var queue = new OutboundQueue(1, SlowConsumerPolicy.COALESCE);
+        queue.offer(Frame.text("utf"), false);
+        assertEquals(DROPPED, queue.offer(Frame.text("binary"), true));
+
+        List<OutboundQueue.Item> items = new ArrayList<>();
+        queue.drainTo(items, 10);
+        assertEquals(1, items.size());
+        assertFalse(items.get(0).binary);
+    }
+
+    @Test
+    void coalesceDropsWhatDoesNotFitIntoAFrame() {
+        var queue = new OutboundQueue(1, SlowConsumerPolicy.COALESCE);
+        queue.offer(Frame.text("x".repeat(Frame.MAX_UTF_LEN / 3)), false);
+        assertEquals(DROPPED, queue.offer(Frame.text("y"), false));
+        assertEquals(List.of("x".repeat(Frame.MAX_UTF_LEN / 3)), drain(queue));
+    }
+
+    @Test
+    void replyIsQueuedPastTheCapacityUnderEveryPolicy() {
+        for (SlowConsumerPolicy policy : SlowConsumerPolicy.values()) {
+            var queue = full(policy);
+            for (int i = 0; i < CAPACITY; i++) {
+                // the UTF framing has no correlation id, the reply is still not a push
+                assertEquals(QUEUED, queue.offer(Frame.reply(Frame.TEXT, 0, "r" + i), false), policy.name());
+            }
+            assertEquals(OVERFLOW, queue.offer(Frame.reply(Frame.TEXT, 0, "late"), false), policy.name());
+        }
+    }
+
+    @Test
+    void pushIsNotMergedIntoAReply() {
+        var queue = new OutboundQueue(1, SlowConsumerPolicy.COALESCE);
+        queue.offer(Frame.reply(Frame.TEXT, 0, "reply"), false);
+        assertEquals(DROPPED, queue.offer(Frame.text("push"), false));
+        assertEquals(List.of("reply"), drain(queue));
+    }
+
+    private static OutboundQueue full(SlowConsumerPolicy policy) {
+        var queue = new OutboundQueue(CAPACITY, policy);
+        for (int i = 0; i < CAPACITY; i++) {
+            queue.offer(Frame.text("m" + i), false);
+        }
+        return queue;
+    }
+
+    private static List<String> drain(OutboundQueue queue) {
+        List<OutboundQueue.Item> items = new ArrayList<>();
+        queue.drainTo(items, Integer.MAX_VALUE);
+        return payloads(items);
+    }
+
+    private static List<String> payloads(List<OutboundQueue.Item> items) {
+        List<String> payloads = new ArrayList<>();
+        for (OutboundQueue.Item item : items) {
+            payloads.add(item.frame.payload);
+        }
+        return payloads;
+    }
+}
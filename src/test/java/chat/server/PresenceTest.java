@@ -0,0 +1,62 @@
+package chat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PresenceTest {
+    @Test
+    void pagesWalkTheLoginsInOrder() {
+        var presence = new Presence();
+        List<String> logins = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            logins.add("u0" + i);
+        }
+        Collections.shuffle(logins, new Random(1));
+        logins.forEach(presence::add);
+
+        // one more than the limit tells that there is a next page
+        assertEquals(List.of("u00", "u01", "u02", "u03"), presence.page("", null, null, 3));
+        assertEquals(List.of("u03", "u04", "u05", "u06"), presence.page("", "u02", null, 3));
+        assertEquals(List.of("u09"), presence.page("", "u08", null, 3));
+        assertEquals(List.of(), presence.page("", "u09", null, 3));
+    }
+
+    @Test
+    void prefixBoundsThePages() {
+        var presence = new Presence();
+        List.of("alice", "bob", "albert", "alex", "a", "amy").forEach(presence::add);
+
+        assertEquals(List.of("albert", "alex", "alice"), presence.page("al", null, null, 10));
+        assertEquals(List.of("alice"), presence.page("al", "alex", null, 10));
+        // a login before the prefix starts the page at the prefix
+        assertEquals(List.of("albert", "alex"), presence.page("al", "a", null, 1));
+        assertEquals(List.of(), presence.page("z", null, null, 10));
+    }
+
+    @Test
+    void userAskingIsLeftOutOfTheLimit() {
+        var presence = new Presence();
+        List.of("alice", "bob", "carl").forEach(presence::add);
+
+        assertEquals(List.of("alice", "carl"), presence.page("", null, "bob", 2));
+        assertEquals(List.of("bob", "carl"), presence.page("", null, "alice", 1));
+    }
+
+    @Test
+    void usersGoOnlineAndOfflineOnce() {
+        var presence = new Presence();
+        assertTrue(presence.add("alice"));
+        assertFalse(presence.add("alice"));
+        assertTrue(presence.add("bob"));
+
+        assertTrue(presence.remove("alice"));
+        assertFalse(presence.remove("alice"));
+        assertEquals(List.of("bob"), presence.page("", null, null, 10));
+    }
+}
@@ -0,0 +1,87 @@
+package chat.user;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatIndexTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void offsetsAreReadByOrdinal() {
+        var index = new ChatIndex(dir.resolve("idx").resolve("0.idx"));
+        for (int i = 0; i < 100; i++) {
+            index.append(i, i * 10L);
+        }
+        assertEquals(100, index.size());
+        assertArrayEquals(new long[]{0}, index.read(0, 1));
+        assertArrayEquals(new long[]{500, 510, 520}, index.read(50, 53));
+        assertArrayEquals(new long[]{990}, index.read(99, 100));
+    }
+
+    @Test
+    void ordinalThatIsNotTheNextOneIsIgnored() {
+        var index = new ChatIndex(dir.resolve("0.idx"));
+        index.append(1, 10);
+        assertEquals(0, index.size());
+        index.append(0, 5);
+        index.append(0, 7);
+        assertEquals(1, index.size());
+        assertArrayEquals(new long[]{5}, index.read(0, 1));
+    }
+
+    @Test
+    void entriesAreKeptInTheFile() throws IOException {
+        Path path = dir.resolve("0.idx");
+        var index = new ChatIndex(path);
+        index.append(0, 3);
+        index.append(1, 42);
+        assertEquals(2 * Long.BYTES, Files.size(path));
+
+        var reopened = new ChatIndex(path);
+        assertEquals(2, reopened.size());
+        assertArrayEquals(new long[]{3, 42}, reopened.read(0, 2));
+        reopened.append(2, 77);
+        assertArrayEquals(new long[]{42, 77}, reopened.read(1, 3));
+    }
+
+    @Test
+    void truncatedEntriesAreWrittenAgain() throws IOException {
+        Path path = dir.resolve("0.idx");
+        var index = new ChatIndex(path);
+        for (int i = 0; i < 5; i++) {
+            index.append(i, i);
+        }
+        index.truncate(2);
+        assertEquals(2, index.size());
+        assertEquals(2 * Long.BYTES, Files.size(path));
+        index.truncate(10);
+        assertEquals(2, index.size());
+
+        index.append(2, 100);
+        assertArrayEquals(new long[]{0, 1, 100}, index.read(0, 3));
+    }
+
+    @Test
+    void readPastTheEndOfTheFileFails() {
+        var index = new ChatIndex(dir.resolve("0.idx"));
+        index.append(0, 1);
+        assertThrows(RuntimeException.class, () -> index.read(0, 2));
+    }
+
+    @Test
+    void manyIndexesHoldNoOpenFiles() {
+        // more than a process may usually have open
+        for (int id = 0; id < 5000; id++) {
+            var index = new ChatIndex(dir.resolve(id + ".idx"));
+            index.append(0, id);
+            assertArrayEquals(new long[]{id}, index.read(0, 1));
+        }
+    }
+}
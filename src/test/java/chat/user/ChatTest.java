@@ -0,0 +1,325 @@
+package chat.user;
+
+import chat.additional.Settings;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatTest {
+    @BeforeEach
+    void recoverEmpty() throws IOException {
+        // the indexes and the snapshot of a log that is gone are deleted by recover
+        Files.deleteIfExists(Path.of("chatsDb.txt"));
+        Chat.recover();
+    }
+
+    @AfterEach
+    void close() {
+        Chat.close();
+    }
+
+    @Test
+    void logIsReplayedOnRestart() {
+        fillChats();
+        restart();
+        assertFilledChats();
+    }
+
+    @Test
+    void snapshotAndTheRecordsAfterItAreLoaded() {
+        fillChats();
+        Chat.snapshot();
+        assertTrue(Files.exists(Path.of("chatsDb.snapshot")));
+        Chat chat = chatOf("alice", "bob");
+        send(chat, "bob", "after");
+        chat.getLast25Msgs("bob");
+        Chat room = Chat.getRoom("r");
+        assertTrue(room.addMember("carl").join());
+        send(room, "carl", "me too");
+
+        restart();
+        chat = chatOf("alice", "bob");
+        assertEquals(List.of("alice: m4", "bob: after"), chat.getNLastMsgsStartingFrom(2, 2));
+        assertEquals(Map.of("#r", 1), Chat.getUnreadCounts("bob"));
+        assertEquals(Map.of("bob", 1, "#r", 2), Chat.getUnreadCounts("alice"));
+        assertTrue(chat.getStatistic("bob").contains("Messages from bob: 1"));
+        assertEquals(List.of("bob: hi all", "carl: me too"), Chat.getRoom("r").getNLastMsgsStartingFrom(2, 2));
+        assertEquals(List.of(Chat.getRoom("r")), chatsOf("carl"));
+    }
+
+    @Test
+    void snapshotAloneIsLoaded() {
+        fillChats();
+        Chat.snapshot();
+        restart();
+        assertFilledChats();
+        // and once more, from the snapshot the restart left as it found it
+        restart();
+        assertFilledChats();
+    }
+
+    @Test
+    void chatCreatedAfterARestartGetsItsOwnRecords() {
+        send(chatOf("alice", "bob"), "alice", "to bob");
+        Chat.snapshot();
+        restart();
+        send(chatOf("alice", "carl"), "alice", "to carl");
+        send(chatOf("alice", "bob"), "bob", "to alice");
+
+        restart();
+        assertEquals(List.of("alice: to bob", "bob: to alice"), chatOf("alice", "bob").getNLastMsgsStartingFrom(2, 2));
+        assertEquals(List.of("alice: to carl"), chatOf("alice", "carl").getNLastMsgsStartingFrom(1, 1));
+    }
+
+    @Test
+    void unreadCountsFollowMessagesAndReads() {
+        Chat alice = chatOf("alice", "bob");
+        send(alice, "alice", "one");
+        send(alice, "alice", "two");
+        send(chatOf("bob", "carl"), "carl", "hi");
+        assertEquals(Map.of("alice", 2, "carl", 1), Chat.getUnreadCounts("bob"));
+        assertEquals(List.of("alice", "carl"), Chat.getUsersThatSentUnreadMsgs("bob"));
+        // a sender has read the own messages
+        assertEquals(Map.of(), Chat.getUnreadCounts("alice"));
+
+        alice.getLast25Msgs("bob");
+        assertEquals(Map.of("carl", 1), Chat.getUnreadCounts("bob"));
+        send(alice, "bob", "hey");
+        assertEquals(Map.of("bob", 1), Chat.getUnreadCounts("alice"));
+        assertEquals(List.of("carl"), Chat.getUsersThatSentUnreadMsgs("bob"));
+    }
+
+    @Test
+    void newMemberOfARoomHasNoUnreadMessagesSentBefore() {
+        Chat room = Chat.getRoom("r");
+        room.addMember("alice").join();
+        send(room, "alice", "before");
+        room.addMember("bob").join();
+        assertEquals(Map.of(), Chat.getUnreadCounts("bob"));
+
+        send(room, "alice", "after");
+        assertEquals(Map.of("#r", 1), Chat.getUnreadCounts("bob"));
+        assertEquals(List.of("alice: before", "(new) alice: after"), room.getLast25Msgs("bob"));
+    }
+
+    @Test
+    void statsCountTheMessagesOfEachSender() {
+        // a login that is a prefix of the other one, and text that looks like a sender
+        Chat chat = chatOf("al", "alice");
+        send(chat, "alice", "one");
+        send(chat, "alice", "al: two");
+        send(chat, "al", "ice: three");
+        String expected = "Server:\n"
+                + "Statistics with alice:\n"
+                + "Total messages: 3\n"
+                + "Messages from al: 1\n"
+                + "Messages from alice: 2";
+        assertEquals(expected, chat.getStatistic("al"));
+
+        restart();
+        assertEquals(expected, chatOf("al", "alice").getStatistic("al"));
+    }
+
+    @Test
+    void statsOfARoomCountItsMembers() {
+        Chat room = Chat.getRoom("r");
+        room.addMember("alice").join();
+        room.addMember("bob").join();
+        send(room, "alice", "one");
+        send(room, "bob", "two");
+        send(room, "bob", "three");
+        assertEquals("Server:\n"
+                + "Statistics of #r:\n"
+                + "Members: 2\n"
+                + "Total messages: 3\n"
+                + "Messages from bob: 2", room.getStatistic("bob"));
+    }
+
+    @Test
+    void messagesAfterTheWatermarkAreNew() {
+        Chat chat = chatOf("alice", "bob");
+        send(chat, "alice", "one");
+        send(chat, "alice", "two");
+        assertEquals(List.of("alice: one", "alice: two"), chat.getLast25Msgs("alice"));
+        assertEquals(List.of("(new) alice: one", "(new) alice: two"), chat.getLast25Msgs("bob"));
+        assertEquals(List.of("alice: one", "alice: two"), chat.getLast25Msgs("bob"));
+
+        send(chat, "alice", "three");
+        assertEquals(List.of("alice: one", "alice: two", "(new) alice: three"), chat.getLast25Msgs("bob"));
+    }
+
+    @Test
+    void openedChatShowsTenReadMessagesAtMost() {
+        Chat chat = chatOf("alice", "bob");
+        for (int i = 0; i < 30; i++) {
+            send(chat, "alice", "old" + i);
+        }
+        chat.getLast25Msgs("bob");
+        for (int i = 0; i < 5; i++) {
+            send(chat, "alice", "new" + i);
+        }
+        List<String> page = chat.getLast25Msgs("bob");
+        assertEquals(15, page.size());
+        assertEquals("alice: old20", page.get(0));
+        assertEquals("(new) alice: new0", page.get(10));
+    }
+
+    @Test
+    void watermarksSurviveARestart() {
+        Chat chat = chatOf("alice", "bob");
+        send(chat, "alice", "one");
+        chat.getLast25Msgs("bob");
+        send(chat, "alice", "two");
+
+        restart();
+        assertEquals(List.of("alice: one", "(new) alice: two"), chatOf("alice", "bob").getLast25Msgs("bob"));
+        restart();
+        assertEquals(Map.of(), Chat.getUnreadCounts("bob"));
+    }
+
+    @Test
+    void messageRecordsNameNoLogins() throws IOException {
+        Chat chat = chatOf("alice", "bob");
+        send(chat, "alice", "one");
+        chat.getLast25Msgs("bob");
+        send(chat, "bob", "two");
+
+        // the chat record names the members, messages refer to them by index
+        List<String> messages = Files.readAllLines(Path.of("chatsDb.txt"))
+                .stream()
+                .filter(l -> l.contains("\"MSG\""))
+                .collect(Collectors.toList());
+        assertEquals(2, messages.size());
+        messages.forEach(l -> assertFalse(l.contains("alice") || l.contains("bob"), l));
+    }
+
+    @Test
+    void tailsOfIdleChatsAreEvictedWithoutLosingHistory() throws InterruptedException {
+        String text = "x".repeat(300);
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        for (int c = 0; c < 40; c++) {
+            Chat chat = chatOf("sender" + c, "reader");
+            for (int i = 0; i < 100; i++) {
+                acks.add(chat.sendMessage("sender" + c, i + text));
+            }
+        }
+        acks.forEach(CompletableFuture::join);
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (Chat.getTailBytes() > Settings.HISTORY_MEMORY_BUDGET && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(Chat.getTailBytes() <= Settings.HISTORY_MEMORY_BUDGET, Chat.getTailBytes() + " bytes of tails");
+
+        // unread state is kept, history is read from the log
+        Map<String, Integer> unread = Chat.getUnreadCounts("reader");
+        assertEquals(40, unread.size());
+        unread.values().forEach(count -> assertEquals(100, count));
+        Chat first = chatOf("sender0", "reader");
+        assertEquals(List.of("sender0: 0" + text, "sender0: 1" + text), first.getNLastMsgsStartingFrom(100, 2));
+        List<String> page = first.getLast25Msgs("reader");
+        assertEquals(25, page.size());
+        assertEquals("(new) sender0: 75" + text, page.get(0));
+
+        Chat second = chatOf("sender1", "reader");
+        send(second, "reader", "reply");
+        assertEquals(List.of("sender1: 99" + text, "reader: reply"), second.getNLastMsgsStartingFrom(2, 2));
+        // both chats are read now
+        assertEquals(38, Chat.getUnreadCounts("reader").size());
+    }
+
+    @Test
+    void deepPagesAreReadByTheOffsetIndex() throws IOException {
+        Chat chat = chatOf("alice", "bob");
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            acks.add(chat.sendMessage("alice", "m" + i));
+        }
+        acks.forEach(CompletableFuture::join);
+        assertEquals(1000 * Long.BYTES, Files.size(Path.of("chatsDb.idx", "0.idx")));
+        assertEquals(List.of("alice: m400", "alice: m401", "alice: m402"), chat.getNLastMsgsStartingFrom(600, 3));
+
+        restart();
+        assertEquals(List.of("alice: m0", "alice: m1"), chatOf("alice", "bob").getNLastMsgsStartingFrom(1000, 2));
+    }
+
+    @Test
+    void indexOfALogThatLostItsTailIsCut() throws IOException {
+        Chat chat = chatOf("alice", "bob");
+        for (int i = 0; i < 10; i++) {
+            send(chat, "alice", "m" + i);
+        }
+        Chat.close();
+        // the last three messages never made it to the disk
+        Path log = Path.of("chatsDb.txt");
+        List<String> lines = Files.readAllLines(log);
+        Files.write(log, lines.subList(0, lines.size() - 3));
+
+        Chat.recover();
+        chat = chatOf("alice", "bob");
+        assertEquals(7 * Long.BYTES, Files.size(Path.of("chatsDb.idx", "0.idx")));
+        send(chat, "bob", "again");
+        assertEquals(List.of("alice: m6", "bob: again"), chat.getNLastMsgsStartingFrom(2, 2));
+        restart();
+        assertEquals(List.of("alice: m5", "alice: m6", "bob: again"), chatOf("alice", "bob").getNLastMsgsStartingFrom(3, 3));
+    }
+
+    /**
+     * Alice sent bob five messages, he read the first three; bob wrote to the room alice and bob are in.
+     */
+    private static void fillChats() {
+        Chat chat = chatOf("alice", "bob");
+        for (int i = 0; i < 3; i++) {
+            send(chat, "alice", "m" + i);
+        }
+        chat.getLast25Msgs("bob");
+        send(chat, "alice", "m3");
+        send(chat, "alice", "m4");
+
+        Chat room = Chat.getRoom("r");
+        assertTrue(room.addMember("alice").join());
+        assertTrue(room.addMember("bob").join());
+        send(room, "bob", "hi all");
+    }
+
+    private static void assertFilledChats() {
+        Chat chat = chatOf("alice", "bob");
+        assertEquals(List.of("alice: m2", "alice: m3", "alice: m4"), chat.getNLastMsgsStartingFrom(3, 3));
+        assertEquals(Map.of("alice", 2), Chat.getUnreadCounts("bob"));
+        assertEquals(Map.of("#r", 1), Chat.getUnreadCounts("alice"));
+        assertTrue(chat.getStatistic("bob").contains("Messages from alice: 5"));
+
+        Chat room = Chat.getRoom("r");
+        assertSame(room, chatsOf("bob").stream().filter(Chat::isRoom).findFirst().orElseThrow());
+        assertFalse(room.addMember("bob").join());
+        assertEquals(List.of("bob: hi all"), room.getNLastMsgsStartingFrom(1, 1));
+    }
+
+    static Chat chatOf(String... users) {
+        return Chat.getChat(Set.of(users));
+    }
+
+    static List<Chat> chatsOf(String login) {
+        return List.copyOf(Chat.getChatsOfUser(login));
+    }
+
+    static void send(Chat chat, String sender, String msg) {
+        chat.sendMessage(sender, msg).join();
+    }
+
+    private static void restart() {
+        Chat.close();
+        Chat.recover();
+    }
+}
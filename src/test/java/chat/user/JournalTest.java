@@ -0,0 +1,171 @@
+package chat.user;
+
+import chat.additional.Durability;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void appendedRecordsAreReplayedInOrderAtTheirOffsets() {
+        Path path = dir.resolve("db.txt");
+        var journal = new Journal(path, Durability.GROUP);
+        assertEquals(0, journal.append(bytes("a\n")));
+        assertEquals(2, journal.append(bytes("bb\n")));
+        long last = journal.append(bytes("ccc\n"));
+        assertEquals(5, last);
+        journal.await(last);
+        assertEquals(9, journal.length());
+        journal.close();
+
+        var reopened = new Journal(path, Durability.GROUP);
+        assertEquals(9, reopened.length());
+        assertEquals(List.of("a@0", "bb@2", "ccc@5"), replay(reopened, 0));
+        assertEquals(List.of("bb@2", "ccc@5"), replay(reopened, 2));
+        assertEquals(List.of(), replay(reopened, 9));
+        reopened.close();
+    }
+
+    @Test
+    void recordsAppendedAfterReopeningFollowTheOldOnes() {
+        Path path = dir.resolve("db.txt");
+        var journal = new Journal(path, Durability.SYNC);
+        journal.await(journal.append(bytes("a\n")));
+        journal.close();
+
+        journal = new Journal(path, Durability.SYNC);
+        long offset = journal.append(bytes("b\n"));
+        assertEquals(2, offset);
+        journal.await(offset);
+        assertEquals(List.of("a@0", "b@2"), replay(journal, 0));
+        journal.close();
+    }
+
+    @Test
+    void linesLongerThanAReplayBlockAndManyBlocksKeepTheirOrder() {
+        Path path = dir.resolve("db.txt");
+        var journal = new Journal(path, Durability.ASYNC);
+        String longLine = "x".repeat(3 * 1024 * 1024);
+        List<String> expected = new ArrayList<>();
+        long offset = 0;
+        for (int i = 0; i < 20_000; i++) {
+            String line = i == 10_000 ? longLine : "line " + i;
+            assertEquals(offset, journal.append(bytes(line + "\n")));
+            expected.add(line.length() > 20 ? "long@" + offset : line + "@" + offset);
+            offset += line.length() + 1;
+        }
+        journal.close(); // writes the queued records
+
+        var reopened = new Journal(path, Durability.ASYNC);
+        assertEquals(offset, reopened.length());
+        List<String> replayed = new ArrayList<>();
+        reopened.replay(0, line -> line, (line, at) -> replayed.add((line.length() > 20 ? "long" : line) + "@" + at));
+        assertEquals(expected, replayed);
+        reopened.close();
+    }
+
+    @Test
+    void tornLastLineIsCutWhenOpened() throws IOException {
+        Path path = dir.resolve("db.txt");
+        Files.write(path, bytes("a\nbb\n{\"torn"));
+
+        var journal = new Journal(path, Durability.GROUP);
+        assertEquals(5, journal.length());
+        assertEquals(List.of("a@0", "bb@2"), replay(journal, 0));
+
+        long offset = journal.append(bytes("c\n"));
+        assertEquals(5, offset);
+        journal.await(offset);
+        journal.close();
+        assertEquals("a\nbb\nc\n", Files.readString(path));
+    }
+
+    @Test
+    void fileOfATornLineOnlyIsEmptied() throws IOException {
+        Path path = dir.resolve("db.txt");
+        Files.write(path, bytes("x".repeat(10_000)));
+
+        var journal = new Journal(path, Durability.GROUP);
+        assertEquals(0, journal.length());
+        assertEquals(List.of(), replay(journal, 0));
+        journal.close();
+        assertEquals(0, Files.size(path));
+    }
+
+    @Test
+    void windowsLineEndsAndBlankLinesAreSkipped() throws IOException {
+        Path path = dir.resolve("db.txt");
+        Files.write(path, bytes("a\r\n\nb\n"));
+
+        var journal = new Journal(path, Durability.GROUP);
+        assertEquals(List.of("a@0", "b@4"), replay(journal, 0));
+        journal.close();
+    }
+
+    @Test
+    void linesDecodedToNullAreSkipped() {
+        Path path = dir.resolve("db.txt");
+        var journal = new Journal(path, Durability.GROUP);
+        journal.append(bytes("keep\n"));
+        journal.await(journal.append(bytes("skip\n")));
+
+        List<String> replayed = new ArrayList<>();
+        journal.replay(0, line -> line.equals("skip") ? null : line, (line, offset) -> replayed.add(line + "@" + offset));
+        assertEquals(List.of("keep@0"), replayed);
+        journal.close();
+    }
+
+    @Test
+    void ackCompletesOnceTheRecordIsWritten() throws Exception {
+        var journal = new Journal(dir.resolve("db.txt"), Durability.GROUP);
+        long offset = journal.append(bytes("a\n"));
+        CompletableFuture<Void> ack = journal.ack(offset);
+        ack.get(10, TimeUnit.SECONDS);
+        assertTrue(journal.isAcknowledged(offset));
+        assertTrue(journal.ack(offset).isDone());
+        journal.close();
+    }
+
+    @Test
+    void asyncAckIsCompletedOnAppend() {
+        var journal = new Journal(dir.resolve("db.txt"), Durability.ASYNC);
+        long offset = journal.append(bytes("a\n"));
+        assertTrue(journal.isAcknowledged(offset));
+        assertTrue(journal.ack(offset).isDone());
+        journal.close();
+    }
+
+    @Test
+    void ackAfterCloseFails() {
+        var journal = new Journal(dir.resolve("db.txt"), Durability.GROUP);
+        journal.close();
+        CompletableFuture<Void> ack = journal.ack(journal.end());
+        ExecutionException e = assertThrows(ExecutionException.class, () -> ack.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertThrows(IllegalStateException.class, () -> journal.append(bytes("a\n")));
+    }
+
+    private static List<String> replay(Journal journal, long from) {
+        List<String> replayed = new ArrayList<>();
+        journal.replay(from, line -> line.isBlank() ? null : line, (line, offset) -> replayed.add(line + "@" + offset));
+        return replayed;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
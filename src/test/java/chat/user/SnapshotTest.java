@@ -0,0 +1,74 @@
+package chat.user;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void snapshotHeaderKeepsFromAndLength() {
+        Path path = dir.resolve("db.snapshot");
+        Snapshot.write(path, new Snapshot.Header(7, 42), List.of("{\"a\":1}", "{\"b\":2}"));
+
+        Snapshot.Header header = Snapshot.readHeader(path);
+        assertEquals(7, header.getFrom());
+        assertEquals(42, header.getLength());
+
+        List<String> lines = new ArrayList<>();
+        Snapshot.readParallel(path, line -> {
+            synchronized (lines) {
+                lines.add(line);
+            }
+        });
+        lines.sort(null);
+        assertEquals(List.of("{\"a\":1}", "{\"b\":2}"), lines);
+        assertFalse(Files.exists(Path.of(path + ".tmp")));
+    }
+
+    @Test
+    void snapshotIsReplacedAsAWhole() {
+        Path path = dir.resolve("db.snapshot");
+        Snapshot.write(path, new Snapshot.Header(1, 2), List.of("{\"a\":1}"));
+        Snapshot.write(path, new Snapshot.Header(3, 4), List.of("{\"b\":2}"));
+
+        assertEquals(3, Snapshot.readHeader(path).getFrom());
+        List<String> lines = new ArrayList<>();
+        Snapshot.readParallel(path, line -> {
+            synchronized (lines) {
+                lines.add(line);
+            }
+        });
+        assertEquals(List.of("{\"b\":2}"), lines);
+    }
+
+    @Test
+    void tmpFileLeftByACrashIsOverwritten() throws IOException {
+        Path path = dir.resolve("db.snapshot");
+        Files.write(Path.of(path + ".tmp"), "{\"stale\":1}\n".repeat(100).getBytes(StandardCharsets.UTF_8));
+        Snapshot.write(path, new Snapshot.Header(1, 2), List.of("{\"a\":1}"));
+
+        assertEquals("#{\"from\":1,\"length\":2}\n{\"a\":1}\n", Files.readString(path).replace(System.lineSeparator(), "\n"));
+        assertFalse(Files.exists(Path.of(path + ".tmp")));
+    }
+
+    @Test
+    void missingSnapshotOrHeaderIsNull() throws IOException {
+        Path path = dir.resolve("db.snapshot");
+        assertNull(Snapshot.readHeader(path));
+        Files.write(path, "{\"a\":1}\n".getBytes(StandardCharsets.UTF_8));
+        assertNull(Snapshot.readHeader(path));
+        Snapshot.delete(path);
+        assertFalse(Files.exists(path));
+    }
+}
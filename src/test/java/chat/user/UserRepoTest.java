@@ -0,0 +1,152 @@
+package chat.user;
+
+import chat.additional.ServerMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import static chat.additional.Role.MODERATOR;
+import static chat.additional.Role.USER;
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserRepoTest {
+    private static final List<String> ROLES = List.of(USER.name());
+
+    @BeforeEach
+    void recoverEmpty() throws IOException {
+        Files.deleteIfExists(Path.of("usersDb.txt"));
+        Files.deleteIfExists(Path.of("usersDb.snapshot"));
+        UserRepo.recover();
+    }
+
+    @AfterEach
+    void close() {
+        UserRepo.close();
+    }
+
+    @Test
+    void savedUserIsReloaded() {
+        assertTrue(UserRepo.saveIfAbsent("alice", "-1861353340", ROLES));
+        restart();
+        assertEquals("-1861353340", UserRepo.getUserPassByLogin("alice"));
+        assertTrue(UserRepo.isUserHasRole("alice", USER.name()));
+        assertFalse(UserRepo.isUserLoginExists("bob"));
+    }
+
+    @Test
+    void takenLoginWritesNothing() {
+        assertTrue(UserRepo.saveIfAbsent("alice", "1", ROLES));
+        long end = UserRepo.getJournal().end();
+        assertFalse(UserRepo.saveIfAbsent("alice", "2", ROLES));
+        assertEquals(end, UserRepo.getJournal().end());
+        assertEquals("1", UserRepo.getUserPassByLogin("alice"));
+    }
+
+    @Test
+    void lastLineOfALoginWins() {
+        UserRepo.saveIfAbsent("alice", "1", ROLES);
+        UserRepo.saveIfAbsent("bob", "2", ROLES);
+        assertEquals(ServerMessage.ROLE_GRANTED, UserRepo.grantRole("alice", MODERATOR.name()).join());
+        assertEquals(ServerMessage.ROLE_GRANTED, UserRepo.grantRole("bob", MODERATOR.name()).join());
+        assertEquals(ServerMessage.ROLE_REMOVED, UserRepo.removeRole("alice", MODERATOR.name()).join());
+        long blockedUntil = UserRepo.now() + 1000;
+        UserRepo.setBlocked("bob", blockedUntil).join();
+
+        restart();
+        assertFalse(UserRepo.isUserHasRole("alice", MODERATOR.name()));
+        assertTrue(UserRepo.isUserHasRole("bob", MODERATOR.name()));
+        assertTrue(UserRepo.isUserBlocked("bob"));
+        assertEquals(blockedUntil, UserRepo.getAuthorization("bob").getBlockedUntil());
+        assertFalse(UserRepo.isUserBlocked("alice"));
+    }
+
+    @Test
+    void unchangedRoleWritesNothing() {
+        UserRepo.saveIfAbsent("alice", "1", ROLES);
+        long end = UserRepo.getJournal().end();
+        assertEquals(ServerMessage.ROLE_WAS_GRANTED_PREVIOUSLY, UserRepo.grantRole("alice", USER.name()).join());
+        assertEquals(ServerMessage.NO_ROLE, UserRepo.removeRole("alice", MODERATOR.name()).join());
+        assertEquals(ServerMessage.INCORRECT_LOGIN, UserRepo.grantRole("bob", MODERATOR.name()).join());
+        assertEquals(end, UserRepo.getJournal().end());
+    }
+
+    @Test
+    void changeRightAfterTheRegistrationIsWrittenAfterIt() {
+        int logins = 200;
+        // the queue is FIFO, a grant spins only on a registration taken by another thread already
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<CompletableFuture<?>> work = new ArrayList<>();
+        for (int i = 0; i < logins; i++) {
+            String login = "user" + i;
+            work.add(CompletableFuture.runAsync(() -> UserRepo.saveIfAbsent(login, "1", ROLES), threads));
+            work.add(CompletableFuture.runAsync(() -> {
+                while (UserRepo.grantRole(login, MODERATOR.name()).join() == ServerMessage.INCORRECT_LOGIN) {
+                    Thread.onSpinWait();
+                }
+            }, threads));
+        }
+        work.forEach(CompletableFuture::join);
+        threads.shutdown();
+
+        restart();
+        for (int i = 0; i < logins; i++) {
+            assertTrue(UserRepo.isUserHasRole("user" + i, MODERATOR.name()), "user" + i);
+        }
+    }
+
+    @Test
+    void watcherGetsTheAuthorizationAndItsChanges() {
+        UserRepo.saveIfAbsent("alice", "1", ROLES);
+        List<Authorization> pushed = new ArrayList<>();
+        Consumer<Authorization> watcher = pushed::add;
+        UserRepo.watch("alice", watcher);
+        UserRepo.grantRole("alice", MODERATOR.name()).join();
+        UserRepo.unwatch("alice", watcher);
+        UserRepo.removeRole("alice", MODERATOR.name()).join();
+
+        assertEquals(2, pushed.size());
+        assertFalse(pushed.get(0).hasRole(MODERATOR));
+        assertTrue(pushed.get(1).hasRole(MODERATOR));
+    }
+
+    @Test
+    void banRepublishedManyTimesExpiresWithOnePush() throws InterruptedException {
+        UserRepo.saveIfAbsent("alice", "1", ROLES);
+        List<Authorization> pushed = new CopyOnWriteArrayList<>();
+        UserRepo.watch("alice", pushed::add);
+        UserRepo.setBlocked("alice", UserRepo.now() + 1).join();
+        // each change of the user and each new watcher publishes the same ban again
+        UserRepo.grantRole("alice", MODERATOR.name()).join();
+        UserRepo.removeRole("alice", MODERATOR.name()).join();
+        UserRepo.watch("alice", a -> {
+        });
+        assertTrue(pushed.get(pushed.size() - 1).isBlocked());
+
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (pushed.get(pushed.size() - 1).isBlocked() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(pushed.get(pushed.size() - 1).isBlocked());
+        int afterExpiry = pushed.size();
+        Thread.sleep(500);
+        assertEquals(afterExpiry, pushed.size());
+        // when it was watched, and once the ban expired
+        assertEquals(2, pushed.stream().filter(a -> !a.isBlocked()).count());
+    }
+
+    private static void restart() {
+        UserRepo.close();
+        UserRepo.recover();
+    }
+}